@@ -1,247 +1,4479 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+import jdk.jfr.*;
 
 public class FileDeduplicator {
     
+    // Размер буфера для потокового чтения и записи
+    static final int STREAM_BUFFER_SIZE = 1 << 20;
+    
+    // Сколько самых частых дубликатов показывать в детальном отчете
+    static final int DEFAULT_TOP_DUPLICATES = 10;
+    
+    // Сколько байт исходного файла обрабатывается между контрольными точками
+    static final long CHECKPOINT_INTERVAL = 256L << 20;
+    
     /**
-     * Удаляет дублирующиеся строки из файла и сохраняет результат
+     * Удаляет дублирующиеся строки из файла и сохраняет результат.
+     * Кодировка определяется по началу файла (CharsetDetector).
      * @param inputFile исходный файл
      * @param outputFile файл для сохранения результата
      * @return количество удаленных дублирующихся строк
      */
     public static int removeDuplicates(Path inputFile, Path outputFile) throws IOException {
+        return removeDuplicates(inputFile, outputFile, null);
+    }
+    
+    /**
+     * Удаляет дублирующиеся строки из файла в заданной кодировке.
+     * Файлы в однобайтовых кодировках (windows-1251, KOI8-R и т.п.) обрабатываются
+     * как байты без декодирования, итоговая информация пишется в той же кодировке.
+     * @param charset кодировка файла; null - определить автоматически
+     * @return количество удаленных дублирующихся строк
+     */
+    public static int removeDuplicates(Path inputFile, Path outputFile, Charset charset) throws IOException {
+        return (int) removeDuplicates(inputFile, outputFile, charset, null).duplicatesRemoved();
+    }
+    
+    /**
+     * То же с замером этапов чтения, удаления дубликатов и записи
+     * (для однобайтовых кодировок - одного этапа dedup)
+     * @param metrics куда записываются замеры; null - без замеров
+     * @return счетчики прочитанных и уникальных строк
+     */
+    static DedupStats removeDuplicates(Path inputFile, Path outputFile, Charset charset,
+                                       PipelineMetrics metrics) throws IOException {
         if (!Files.exists(inputFile)) {
             throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
         }
+        if (charset == null) {
+            charset = CharsetDetector.detect(inputFile);
+        }
+        if (metrics != null) {
+            metrics.start();
+        }
+        long time = System.nanoTime();
+        
+        if (CharsetDetector.isSingleByte(charset)) {
+            DedupStats stats = removeDuplicatesSingleByte(inputFile, outputFile, charset, metrics);
+            
+            System.out.println("Кодировка файла: " + charset.name());
+            System.out.println("Прочитано строк из исходного файла: " + stats.totalLines);
+            System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+            System.out.println("Сохранено уникальных строк: " + stats.uniqueLines);
+            
+            return stats;
+        }
         
         // Читаем все строки из файла
-        List<String> lines = Files.readAllLines(inputFile);
+        List<String> lines = Files.readAllLines(inputFile, charset);
         System.out.println("Прочитано строк из исходного файла: " + lines.size());
+        time = addPhase(metrics, "read", time);
         
         // Используем LinkedHashSet для сохранения порядка и удаления дубликатов
         Set<String> uniqueLines = new LinkedHashSet<>(lines);
         int duplicatesRemoved = lines.size() - uniqueLines.size();
+        time = addPhase(metrics, "hash", time);
         
-        // Записываем уникальные строки в выходной файл
-        Files.write(outputFile, uniqueLines);
-        
-        // Добавляем информацию об удаленных дубликатах в конец файла
-        String duplicatesInfo = "\n\n=== ИНФОРМАЦИЯ О ДУБЛИКАТАХ ===\n" +
-                               "Удалено дублирующихся строк: " + duplicatesRemoved + "\n" +
-                               "Осталось уникальных строк: " + uniqueLines.size() + "\n" +
-                               "Исходное количество строк: " + lines.size();
-        
-        Files.write(outputFile, duplicatesInfo.getBytes(), StandardOpenOption.APPEND);
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            // Записываем уникальные строки в выходной файл
+            Files.write(output.path(), uniqueLines, charset);
+            
+            // Добавляем информацию об удаленных дубликатах в конец файла
+            String duplicatesInfo = buildDuplicatesInfo(duplicatesRemoved, uniqueLines.size(), lines.size());
+            Files.write(output.path(), infoBytes(duplicatesInfo, charset), StandardOpenOption.APPEND);
+            output.commit();
+        }
+        if (metrics != null) {
+            addPhase(metrics, "write", time);
+            finishDedupMetrics(metrics, inputFile, outputFile, lines.size(), duplicatesRemoved);
+        }
         
         System.out.println("Удалено дублирующихся строк: " + duplicatesRemoved);
         System.out.println("Сохранено уникальных строк: " + uniqueLines.size());
         
-        return duplicatesRemoved;
+        DedupStats stats = new DedupStats();
+        stats.totalLines = lines.size();
+        stats.uniqueLines = uniqueLines.size();
+        return stats;
     }
     
     /**
-     * Удаляет дублирующиеся строки с дополнительной информацией о каждом дубликате
+     * Потоковый вариант removeDuplicates для файлов, которые не помещаются в память.
+     * Строки читаются через буферизованный канал и сразу пишутся в выходной файл,
+     * а в памяти хранятся только 128-битные отпечатки уже встреченных строк.
+     * Результат и итоговая информация совпадают с removeDuplicates байт в байт.
+     * Кодировка определяется по началу файла (CharsetDetector).
+     * @param inputFile исходный файл
+     * @param outputFile файл для сохранения результата
+     * @return количество удаленных дублирующихся строк
      */
-    public static int removeDuplicatesWithDetails(Path inputFile, Path outputFile) throws IOException {
+    public static long removeDuplicatesStreaming(Path inputFile, Path outputFile) throws IOException {
+        return removeDuplicatesStreaming(inputFile, outputFile, null);
+    }
+    
+    /**
+     * Потоковое удаление дубликатов в заданной кодировке; однобайтовые кодировки
+     * обрабатываются как байты без декодирования, как в removeDuplicates
+     * @param charset кодировка файла; null - определить автоматически
+     */
+    public static long removeDuplicatesStreaming(Path inputFile, Path outputFile, Charset charset) throws IOException {
+        return removeDuplicatesStreaming(inputFile, outputFile, charset, null);
+    }
+    
+    /**
+     * То же с замером этапов чтения, хеширования и записи
+     * (для однобайтовых кодировок - одного этапа dedup)
+     * @param metrics куда записываются замеры; null - без замеров
+     */
+    public static long removeDuplicatesStreaming(Path inputFile, Path outputFile, Charset charset,
+                                                 PipelineMetrics metrics) throws IOException {
         if (!Files.exists(inputFile)) {
             throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
         }
-        
-        List<String> lines = Files.readAllLines(inputFile);
-        System.out.println("Прочитано строк из исходного файла: " + lines.size());
-        
-        // Собираем статистику по дубликатам
-        Map<String, Integer> lineCount = new HashMap<>();
-        for (String line : lines) {
-            lineCount.put(line, lineCount.getOrDefault(line, 0) + 1);
+        if (charset == null) {
+            charset = CharsetDetector.detect(inputFile);
         }
         
-        // Фильтруем уникальные строки
-        List<String> uniqueLines = new ArrayList<>();
-        List<String> duplicateInfo = new ArrayList<>();
-        int duplicatesRemoved = 0;
+        DedupStats stats = new DedupStats();
+        FingerprintSet seen = new FingerprintSet();
+        LineFingerprint fingerprint = new LineFingerprint();
+        boolean timed = metrics != null;
+        long readNanos = 0, hashNanos = 0, writeNanos = 0;
+        if (timed) {
+            metrics.start();
+        }
+        if (CharsetDetector.isSingleByte(charset)) {
+            stats = removeDuplicatesSingleByte(inputFile, outputFile, charset, metrics);
+            
+            System.out.println("Прочитано строк из исходного файла: " + stats.totalLines);
+            System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+            System.out.println("Сохранено уникальных строк: " + stats.uniqueLines);
+            
+            return stats.duplicatesRemoved();
+        }
         
-        for (String line : lines) {
-            if (lineCount.get(line) == 1) {
-                uniqueLines.add(line);
-            } else {
-                duplicatesRemoved++;
-                if (lineCount.get(line) > 1 && !duplicateInfo.contains(line)) {
-                    duplicateInfo.add("Дубликат: '" + line + "' встречается " + 
-                                    lineCount.get(line) + " раз");
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            try (BufferedReader reader = newLineReader(inputFile, charset);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(output.path()), STREAM_BUFFER_SIZE)) {
+                
+                // Та же кодировка и разделитель строк, что и у Files.write
+                Writer writer = new OutputStreamWriter(out, charset.newEncoder());
+                String separator = System.lineSeparator();
+                String line;
+                long time = timed ? System.nanoTime() : 0;
+                while ((line = reader.readLine()) != null) {
+                    if (timed) {
+                        long now = System.nanoTime();
+                        readNanos += now - time;
+                        time = now;
+                    }
+                    stats.totalLines++;
+                    fingerprint.hash(line);
+                    boolean unique = seen.add(fingerprint.hi, fingerprint.lo);
+                    if (timed) {
+                        long now = System.nanoTime();
+                        hashNanos += now - time;
+                        time = now;
+                    }
+                    if (unique) {
+                        stats.uniqueLines++;
+                        writer.write(line);
+                        writer.write(separator);
+                        if (timed) {
+                            long now = System.nanoTime();
+                            writeNanos += now - time;
+                            time = now;
+                        }
+                    }
+                }
+                writer.flush();
+                
+                // Итоговая информация пишется байтами, как в removeDuplicates
+                out.write(infoBytes(buildDuplicatesInfo(stats.duplicatesRemoved(), stats.uniqueLines, stats.totalLines),
+                                    charset));
+                if (timed) {
+                    writeNanos += System.nanoTime() - time;
                 }
             }
+            output.commit();
+        }
+        
+        if (timed) {
+            metrics.addPhase("read", readNanos);
+            metrics.addPhase("hash", hashNanos);
+            metrics.addPhase("write", writeNanos);
+            metrics.addLines(stats.totalLines);
+            metrics.addDictionaryLookups(stats.totalLines, stats.duplicatesRemoved());
+            metrics.addBytesIn(Files.size(inputFile));
+            metrics.addBytesOut(Files.size(outputFile));
+            metrics.finish();
+        }
+        
+        System.out.println("Прочитано строк из исходного файла: " + stats.totalLines);
+        System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+        System.out.println("Сохранено уникальных строк: " + stats.uniqueLines);
+        
+        return stats.duplicatesRemoved();
+    }
+    
+    /**
+     * Удаляет дубликаты из файлов, в которых даже набор уникальных строк не помещается в память.
+     * Строки сбрасываются на диск отсортированными порциями, разбитыми по хешу,
+     * затем сливаются, а исходный порядок восстанавливается по номерам строк.
+     * Временные файлы создаются рядом с выходным файлом.
+     * Кодировка определяется по началу файла (CharsetDetector).
+     * @param inputFile исходный файл
+     * @param outputFile файл для сохранения результата
+     * @param memoryBudgetBytes примерный объем памяти, который можно занять под буферы
+     * @return количество удаленных дублирующихся строк
+     */
+    public static long removeDuplicatesExternal(Path inputFile, Path outputFile, long memoryBudgetBytes) throws IOException {
+        return removeDuplicatesExternal(inputFile, outputFile, memoryBudgetBytes, null);
+    }
+    
+    /**
+     * Внешняя сортировка для файла в заданной кодировке. Строки в однобайтовых
+     * кодировках переносятся как ISO-8859-1 (байт в символ), поэтому любые байты
+     * сохраняются без изменений.
+     * @param charset кодировка файла; null - определить автоматически
+     */
+    public static long removeDuplicatesExternal(Path inputFile, Path outputFile, long memoryBudgetBytes,
+                                                Charset charset) throws IOException {
+        if (!Files.exists(inputFile)) {
+            throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
+        }
+        if (charset == null) {
+            charset = CharsetDetector.detect(inputFile);
+        }
+        
+        Path tempDir = outputFile.toAbsolutePath().getParent();
+        DedupStats stats;
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            stats = new ExternalDeduplicator(memoryBudgetBytes, tempDir, charset).run(inputFile, output.path());
+            output.commit();
         }
         
-        // Записываем уникальные строки
-        Files.write(outputFile, uniqueLines);
+        System.out.println("Прочитано строк из исходного файла: " + stats.totalLines);
+        System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+        System.out.println("Сохранено уникальных строк: " + stats.uniqueLines);
         
-        // Добавляем детальную информацию о дубликатах
-        List<String> footer = new ArrayList<>();
-        footer.add("\n=== ДЕТАЛЬНАЯ ИНФОРМАЦИЯ О ДУБЛИКАТАХ ===");
-        footer.add("Удалено дублирующихся строк: " + duplicatesRemoved);
-        footer.add("Осталось уникальных строк: " + uniqueLines.size());
-        footer.add("Исходное количество строк: " + lines.size());
-        footer.add("\nПовторяющиеся строки:");
-        footer.addAll(duplicateInfo);
+        return stats.duplicatesRemoved();
+    }
+    
+    /**
+     * Параллельное удаление дубликатов на всех ядрах.
+     * Файл делится на отображенные в память фрагменты по границам строк,
+     * строки хешируются в ForkJoinPool, а для каждого отпечатка в общей таблице
+     * запоминается номер его первого вхождения. Итоговый проход записывает
+     * только первые вхождения в исходном порядке, как removeDuplicates.
+     * Байты строк копируются без перекодирования.
+     * @param inputFile исходный файл
+     * @param outputFile файл для сохранения результата
+     * @param threads количество потоков
+     * @return количество удаленных дублирующихся строк
+     */
+    public static long removeDuplicatesParallel(Path inputFile, Path outputFile, int threads) throws IOException {
+        if (!Files.exists(inputFile)) {
+            throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
+        }
         
-        Files.write(outputFile, footer, StandardOpenOption.APPEND);
+        DedupStats stats;
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            stats = new ParallelDeduplicator(threads).run(inputFile, output.path());
+            output.commit();
+        }
         
-        System.out.println("Удалено дублирующихся строк: " + duplicatesRemoved);
-        System.out.println("Найдено " + duplicateInfo.size() + " различных дублирующихся строк");
+        System.out.println("Прочитано строк из исходного файла: " + stats.totalLines);
+        System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+        System.out.println("Сохранено уникальных строк: " + stats.uniqueLines);
         
-        return duplicatesRemoved;
+        return stats.duplicatesRemoved();
     }
-}
-import java.io.*;
-import java.nio.file.*;
-import java.util.*;
-import java.util.zip.*;
-
-public class FileCompressionManager {
     
     /**
-     * Создает сжатую версию файла с информацией для восстановления
+     * Удаление дубликатов без декодирования строк.
+     * Файл читается отображенными в память фрагментами, строки хешируются и сравниваются
+     * как срезы байтов, а подряд идущие уникальные строки копируются в выходной файл
+     * одним вызовом transferTo. Декодируется только итоговая информация.
+     * Для корректного UTF-8 результат совпадает с removeDuplicates.
+     * @param inputFile исходный файл
+     * @param outputFile файл для сохранения результата
+     * @return количество удаленных дублирующихся строк
      */
-    public static void createCompressedVersion(Path inputFile, Path compressedFile) throws IOException {
+    public static long removeDuplicatesBytes(Path inputFile, Path outputFile) throws IOException {
         if (!Files.exists(inputFile)) {
             throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
         }
         
-        List<String> lines = Files.readAllLines(inputFile);
+        DedupStats stats;
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            stats = new ByteDeduplicator().run(inputFile, output.path());
+            output.commit();
+        }
         
-        // Создаем карту для замены дубликатов на идентификаторы
-        Map<String, Integer> lineToId = new HashMap<>();
-        List<String> uniqueLines = new ArrayList<>();
-        List<Integer> compressedLines = new ArrayList<>();
-        int nextId = 1;
+        System.out.println("Прочитано строк из исходного файла: " + stats.totalLines);
+        System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+        System.out.println("Сохранено уникальных строк: " + stats.uniqueLines);
         
-        // Сжимаем данные
-        for (String line : lines) {
-            if (!lineToId.containsKey(line)) {
-                lineToId.put(line, nextId);
-                uniqueLines.add(line);
-                nextId++;
-            }
-            compressedLines.add(lineToId.get(line));
-        }
-        
-        // Сохраняем сжатую версию
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(compressedFile))) {
-            // Заголовок с метаданными
-            writer.println("=== СЖАТАЯ ВЕРСИЯ ФАЙЛА ===");
-            writer.println("Исходный файл: " + inputFile.getFileName());
-            writer.println("Общее количество строк: " + lines.size());
-            writer.println("Уникальных строк: " + uniqueLines.size());
-            writer.println("Коэффициент сжатия: " + 
-                String.format("%.2f", (double) lines.size() / uniqueLines.size()));
-            writer.println("=== ДАННЫЕ ===");
-            
-            // Сохраняем уникальные строки с идентификаторами
-            writer.println("[УНИКАЛЬНЫЕ_СТРОКИ]");
-            for (int i = 0; i < uniqueLines.size(); i++) {
-                writer.println((i + 1) + ":" + uniqueLines.get(i));
-            }
-            
-            // Сохраняем сжатые данные
-            writer.println("[СЖАТЫЕ_ДАННЫЕ]");
-            for (int i = 0; i < compressedLines.size(); i++) {
-                writer.print(compressedLines.get(i));
-                if (i < compressedLines.size() - 1) {
-                    writer.print(",");
+        return stats.duplicatesRemoved();
+    }
+    
+    /**
+     * Удаляет точные и похожие дубликаты строк.
+     * Каждая строка сначала приводится к нормальной форме (например, без чисел
+     * и временных меток), совпадающие нормальные формы считаются точными дубликатами.
+     * Остальные строки сравниваются по MinHash-подписям с бакетами LSH, и строка,
+     * похожая на уже сохраненную с коэффициентом Жаккара не ниже порога, удаляется.
+     * В файл записываются исходные (ненормализованные) строки.
+     * @param inputFile исходный файл
+     * @param outputFile файл для сохранения результата
+     * @param normalizer нормализация строк перед сравнением
+     * @param jaccardThreshold порог похожести от 0 до 1; 1 отключает поиск похожих строк
+     * @return общее количество удаленных строк
+     */
+    public static long removeNearDuplicates(Path inputFile, Path outputFile, LineNormalizer normalizer,
+                                            double jaccardThreshold) throws IOException {
+        return removeNearDuplicates(inputFile, outputFile, normalizer, jaccardThreshold, null);
+    }
+    
+    /**
+     * То же для файла в заданной кодировке. Нормализация работает со строками,
+     * поэтому файл декодируется и в этой кодировке записывается обратно.
+     * @param charset кодировка файла; null - определить автоматически
+     */
+    public static long removeNearDuplicates(Path inputFile, Path outputFile, LineNormalizer normalizer,
+                                            double jaccardThreshold, Charset charset) throws IOException {
+        if (!Files.exists(inputFile)) {
+            throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
+        }
+        if (charset == null) {
+            charset = CharsetDetector.detect(inputFile);
+        }
+        
+        long totalLines = 0;
+        long uniqueLines = 0;
+        long exactDuplicates = 0;
+        long nearDuplicates = 0;
+        FingerprintSet seen = new FingerprintSet();
+        LineFingerprint fingerprint = new LineFingerprint();
+        NearDuplicateDetector detector = jaccardThreshold < 1.0 ? new NearDuplicateDetector(jaccardThreshold) : null;
+        
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            try (BufferedReader reader = newLineReader(inputFile, charset);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(output.path()), STREAM_BUFFER_SIZE)) {
+                Writer writer = new OutputStreamWriter(out, charset.newEncoder());
+                String separator = System.lineSeparator();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    totalLines++;
+                    String normalized = normalizer.normalize(line);
+                    fingerprint.hash(normalized);
+                    if (!seen.add(fingerprint.hi, fingerprint.lo)) {
+                        exactDuplicates++;
+                    } else if (detector != null && detector.checkAndAdd(normalized)) {
+                        nearDuplicates++;
+                    } else {
+                        uniqueLines++;
+                        writer.write(line);
+                        writer.write(separator);
+                    }
                 }
+                writer.flush();
+                
+                String duplicatesInfo = "\n\n=== ИНФОРМАЦИЯ О ДУБЛИКАТАХ ===\n" +
+                                       "Удалено точных дубликатов: " + exactDuplicates + "\n" +
+                                       "Удалено похожих строк: " + nearDuplicates + "\n" +
+                                       "Осталось уникальных строк: " + uniqueLines + "\n" +
+                                       "Исходное количество строк: " + totalLines;
+                out.write(infoBytes(duplicatesInfo, charset));
             }
-            writer.println();
+            output.commit();
         }
         
-        System.out.println("Создана сжатая версия файла:");
-        System.out.println("  Исходных строк: " + lines.size());
-        System.out.println("  Уникальных строк: " + uniqueLines.size());
-        System.out.println("  Коэффициент сжатия: " + 
-            String.format("%.2f", (double) lines.size() / uniqueLines.size()));
+        System.out.println("Прочитано строк из исходного файла: " + totalLines);
+        System.out.println("Удалено точных дубликатов: " + exactDuplicates);
+        System.out.println("Удалено похожих строк: " + nearDuplicates);
+        System.out.println("Сохранено уникальных строк: " + uniqueLines);
+        
+        return exactDuplicates + nearDuplicates;
     }
     
     /**
-     * Восстанавливает полную версию файла из сжатой
+     * Инкрементальное удаление дубликатов для файлов, которые только дописываются.
+     * Рядом с выходным файлом хранится индекс (outputFile.idx) с отпечатками строк
+     * и смещением, до которого исходный файл уже обработан, и журнал (outputFile.idx.log),
+     * в который дописываются только отпечатки новых строк. При следующем запуске
+     * читается только дописанный хвост, новые уникальные строки добавляются
+     * в выходной файл, итоговая информация переписывается.
+     * Если исходный файл уменьшился, был заменен (другой inode) или изменилось его начало,
+     * результат строится заново. Незавершенная последняя строка ждет следующего запуска.
+     * @param inputFile исходный файл
+     * @param outputFile файл для сохранения результата
+     * @return количество дубликатов, удаленных в этом запуске
      */
-    public static void restoreFromCompressed(Path compressedFile, Path outputFile) throws IOException {
-        if (!Files.exists(compressedFile)) {
-            throw new FileNotFoundException("Сжатый файл не найден: " + compressedFile);
+    public static long removeDuplicatesIncremental(Path inputFile, Path outputFile) throws IOException {
+        if (!Files.exists(inputFile)) {
+            throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
         }
         
-        List<String> compressedLines = Files.readAllLines(compressedFile);
-        Map<Integer, String> idToLine = new HashMap<>();
-        List<Integer> lineIds = new ArrayList<>();
-        boolean readingUniqueLines = false;
-        boolean readingCompressedData = false;
-        
-        // Парсим сжатый файл
-        for (String line : compressedLines) {
-            if (line.equals("[УНИКАЛЬНЫЕ_СТРОКИ]")) {
-                readingUniqueLines = true;
-                readingCompressedData = false;
-                continue;
-            } else if (line.equals("[СЖАТЫЕ_ДАННЫЕ]")) {
-                readingUniqueLines = false;
-                readingCompressedData = true;
-                continue;
-            } else if (line.startsWith("===") || line.isEmpty()) {
-                continue;
+        DedupStats stats = new IncrementalDeduplicator(inputFile, outputFile).run();
+        
+        System.out.println("Прочитано новых строк: " + stats.totalLines);
+        System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+        System.out.println("Добавлено уникальных строк: " + stats.uniqueLines);
+        
+        return stats.duplicatesRemoved();
+    }
+    
+    /**
+     * Удаление дубликатов с контрольными точками для долгих запусков.
+     * Результат собирается в outputFile.part, а после каждых CHECKPOINT_INTERVAL байт
+     * исходного файла сохраняется индекс (outputFile.part.idx) с обработанным смещением
+     * и отпечатками строк. Если процесс был прерван, повторный вызов продолжает
+     * с последней контрольной точки. Готовый файл атомарно заменяет outputFile,
+     * результат совпадает с removeDuplicatesBytes.
+     * @param inputFile исходный файл
+     * @param outputFile файл для сохранения результата
+     * @return количество удаленных дубликатов
+     */
+    public static long removeDuplicatesResumable(Path inputFile, Path outputFile) throws IOException {
+        if (!Files.exists(inputFile)) {
+            throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
+        }
+        
+        Path partFile = outputFile.resolveSibling(outputFile.getFileName() + ".part");
+        IncrementalDeduplicator deduplicator =
+            new IncrementalDeduplicator(inputFile, partFile, CHECKPOINT_INTERVAL, true);
+        deduplicator.run();
+        AtomicOutput.moveDurably(partFile, outputFile);
+        IncrementalDeduplicator.deleteIndex(partFile);
+        
+        DedupStats stats = deduplicator.totals();
+        System.out.println("Прочитано строк из исходного файла: " + stats.totalLines);
+        System.out.println("Удалено дублирующихся строк: " + stats.duplicatesRemoved());
+        System.out.println("Сохранено уникальных строк: " + stats.uniqueLines);
+        
+        return stats.duplicatesRemoved();
+    }
+    
+    /**
+     * Добавляет этап от since до текущего момента, если замеры включены
+     * @return текущее время - начало следующего этапа
+     */
+    private static long addPhase(PipelineMetrics metrics, String phase, long since) {
+        long now = System.nanoTime();
+        if (metrics != null) {
+            metrics.addPhase(phase, now - since);
+        }
+        return now;
+    }
+    
+    private static void finishDedupMetrics(PipelineMetrics metrics, Path inputFile, Path outputFile,
+                                           long totalLines, long duplicatesRemoved) throws IOException {
+        metrics.addLines(totalLines);
+        metrics.addDictionaryLookups(totalLines, duplicatesRemoved);
+        metrics.addBytesIn(Files.size(inputFile));
+        metrics.addBytesOut(Files.size(outputFile));
+        metrics.finish();
+    }
+    
+    /**
+     * Однобайтовая кодировка: строки сравниваются как байты без декодирования,
+     * итоговая информация пишется в кодировке файла
+     */
+    private static DedupStats removeDuplicatesSingleByte(Path inputFile, Path outputFile, Charset charset,
+                                                        PipelineMetrics metrics) throws IOException {
+        long time = System.nanoTime();
+        DedupStats stats;
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            stats = new ByteDeduplicator().run(inputFile, output.path(), charset);
+            output.commit();
+        }
+        if (metrics != null) {
+            metrics.addPhase("dedup", System.nanoTime() - time);
+            finishDedupMetrics(metrics, inputFile, outputFile, stats.totalLines, stats.duplicatesRemoved());
+        }
+        return stats;
+    }
+    
+    /**
+     * Итоговая информация в кодировке файла; для UTF-8 - в кодировке по умолчанию,
+     * как ее всегда записывал removeDuplicates
+     */
+    static byte[] infoBytes(String info, Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) ? info.getBytes() : info.getBytes(charset);
+    }
+    
+    /**
+     * Открывает файл для построчного чтения через буферизованный канал.
+     * Байты, некорректные для кодировки, приводят к ошибке, как и в Files.readAllLines.
+     */
+    static BufferedReader newLineReader(Path file, Charset charset) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return new BufferedReader(
+            Channels.newReader(channel, charset.newDecoder(), STREAM_BUFFER_SIZE),
+            STREAM_BUFFER_SIZE);
+    }
+    
+    /**
+     * Формирует блок с информацией о дубликатах, который дописывается в конец файла
+     */
+    static String buildDuplicatesInfo(long duplicatesRemoved, long uniqueLines, long totalLines) {
+        return "\n\n=== ИНФОРМАЦИЯ О ДУБЛИКАТАХ ===\n" +
+               "Удалено дублирующихся строк: " + duplicatesRemoved + "\n" +
+               "Осталось уникальных строк: " + uniqueLines + "\n" +
+               "Исходное количество строк: " + totalLines;
+    }
+    
+    /**
+     * Удаляет дублирующиеся строки с дополнительной информацией о каждом дубликате
+     */
+    public static int removeDuplicatesWithDetails(Path inputFile, Path outputFile) throws IOException {
+        return removeDuplicatesWithDetails(inputFile, outputFile, DEFAULT_TOP_DUPLICATES);
+    }
+    
+    /**
+     * Удаляет дублирующиеся строки с дополнительной информацией о каждом дубликате.
+     * За один проход строится индекс: для каждой различной строки хранится число вхождений,
+     * номер первого и последнего вхождения. В выходной файл попадают строки,
+     * которые встречаются ровно один раз, затем отчет и topN самых частых дубликатов.
+     * @param topN сколько самых частых дубликатов показать в отчете
+     */
+    public static int removeDuplicatesWithDetails(Path inputFile, Path outputFile, int topN) throws IOException {
+        return removeDuplicatesWithDetails(inputFile, outputFile, topN, null);
+    }
+    
+    /**
+     * То же для файла в заданной кодировке: строки и отчет пишутся в ней же
+     * @param charset кодировка файла; null - определить автоматически
+     */
+    public static int removeDuplicatesWithDetails(Path inputFile, Path outputFile, int topN,
+                                                  Charset charset) throws IOException {
+        return removeDuplicatesWithDetails(inputFile, outputFile, topN, charset, null);
+    }
+    
+    /**
+     * То же с замером этапов подсчета строк и записи отчета
+     * @param metrics куда записываются замеры; null - без замеров
+     */
+    public static int removeDuplicatesWithDetails(Path inputFile, Path outputFile, int topN, Charset charset,
+                                                  PipelineMetrics metrics) throws IOException {
+        if (!Files.exists(inputFile)) {
+            throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
+        }
+        if (charset == null) {
+            charset = CharsetDetector.detect(inputFile);
+        }
+        if (metrics != null) {
+            metrics.start();
+        }
+        long time = System.nanoTime();
+        
+        // Собираем статистику по дубликатам за один проход
+        LineCountIndex index = new LineCountIndex();
+        try (BufferedReader reader = newLineReader(inputFile, charset)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                index.add(line);
             }
-            
-            if (readingUniqueLines) {
-                // Парсим строки вида "1:текст строки"
-                int separatorIndex = line.indexOf(':');
-                if (separatorIndex > 0) {
-                    try {
-                        int id = Integer.parseInt(line.substring(0, separatorIndex));
-                        String text = line.substring(separatorIndex + 1);
-                        idToLine.put(id, text);
-                    } catch (NumberFormatException e) {
-                        System.err.println("Ошибка парсинга ID: " + line);
+        }
+        System.out.println("Прочитано строк из исходного файла: " + index.totalLines());
+        
+        int uniqueCount = 0;
+        int duplicateCount = 0;
+        for (LineCountIndex.Entry entry : index.entries()) {
+            if (entry.count == 1) {
+                uniqueCount++;
+            } else {
+                duplicateCount++;
+            }
+        }
+        int duplicatesRemoved = (int) (index.totalLines() - uniqueCount);
+        time = addPhase(metrics, "count", time);
+        
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            try (BufferedWriter writer = Files.newBufferedWriter(output.path(), charset)) {
+                // Записываем уникальные строки: порядок индекса совпадает с порядком первых вхождений
+                for (LineCountIndex.Entry entry : index.entries()) {
+                    if (entry.count == 1) {
+                        writer.write(entry.line);
+                        writer.newLine();
                     }
                 }
-            } else if (readingCompressedData) {
-                // Парсим сжатые данные
-                String[] ids = line.split(",");
-                for (String idStr : ids) {
-                    try {
-                        lineIds.add(Integer.parseInt(idStr.trim()));
-                    } catch (NumberFormatException e) {
-                        System.err.println("Ошибка парсинга ID данных: " + idStr);
+                
+                // Добавляем детальную информацию о дубликатах
+                List<String> footer = new ArrayList<>();
+                footer.add("\n=== ДЕТАЛЬНАЯ ИНФОРМАЦИЯ О ДУБЛИКАТАХ ===");
+                footer.add("Удалено дублирующихся строк: " + duplicatesRemoved);
+                footer.add("Осталось уникальных строк: " + uniqueCount);
+                footer.add("Исходное количество строк: " + index.totalLines());
+                footer.add("\nПовторяющиеся строки:");
+                for (String footerLine : footer) {
+                    writer.write(footerLine);
+                    writer.newLine();
+                }
+                for (LineCountIndex.Entry entry : index.entries()) {
+                    if (entry.count > 1) {
+                        writer.write(describeDuplicate(entry));
+                        writer.newLine();
                     }
                 }
+                
+                writer.write("\nСамые частые дубликаты (топ " + topN + "):");
+                writer.newLine();
+                for (LineCountIndex.Entry entry : index.topDuplicated(topN)) {
+                    writer.write(describeDuplicate(entry));
+                    writer.newLine();
+                }
+            }
+            output.commit();
+        }
+        if (metrics != null) {
+            addPhase(metrics, "write", time);
+            finishDedupMetrics(metrics, inputFile, outputFile, index.totalLines(), duplicatesRemoved);
+        }
+        
+        System.out.println("Удалено дублирующихся строк: " + duplicatesRemoved);
+        System.out.println("Найдено " + duplicateCount + " различных дублирующихся строк");
+        
+        return duplicatesRemoved;
+    }
+    
+    private static String describeDuplicate(LineCountIndex.Entry entry) {
+        return "Дубликат: '" + entry.line + "' встречается " + entry.count + " раз" +
+               " (первое вхождение: строка " + entry.firstLine +
+               ", последнее: строка " + entry.lastLine + ")";
+    }
+}
+
+/**
+ * Замеры одного прохода обработки: время этапов, объем и скорость,
+ * пиковое использование кучи, объем выделенной памяти и доля попаданий в словарь.
+ * Результат выводится в JSON (toJson) и записывается событиями JFR
+ * filetools.PipelineRun и filetools.PipelinePhase.
+ *
+ * Выделенная память считается по потоку, вызвавшему start/finish; операции
+ * в других потоках сообщают свои выделения через addAllocatedBytes.
+ * Пики пулов кучи не сбрасываются (сброс затронул бы одновременные проходы).
+ * Если пик пула вырос за время прохода, берется он, иначе - большее из использования
+ * на старте и на финише. Пик общий для JVM, поэтому при нескольких одновременных
+ * проходах он может быть завышен чужим пиком.
+ */
+class PipelineMetrics {
+    private final String operation;
+    private final Map<String, LongAdder> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder dictionaryLookups = new LongAdder();
+    private final LongAdder dictionaryHits = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    
+    private PipelineRunEvent runEvent;
+    private long startNanos;
+    private long elapsedNanos;
+    private long startThreadAllocated;
+    private final Map<String, long[]> heapAtStart = new HashMap<>();
+    private long peakHeapBytes;
+    
+    PipelineMetrics(String operation) {
+        this.operation = operation;
+    }
+    
+    void start() {
+        heapAtStart.clear();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                // Использование и пик пула на старте прохода
+                heapAtStart.put(pool.getName(), new long[] {pool.getUsage().getUsed(), pool.getPeakUsage().getUsed()});
+            }
+        }
+        runEvent = new PipelineRunEvent();
+        runEvent.begin();
+        startThreadAllocated = threadAllocatedBytes();
+        startNanos = System.nanoTime();
+    }
+    
+    void finish() {
+        elapsedNanos = System.nanoTime() - startNanos;
+        long threadAllocated = threadAllocatedBytes();
+        if (threadAllocated >= 0 && startThreadAllocated >= 0) {
+            allocatedBytes.add(threadAllocated - startThreadAllocated);
+        }
+        peakHeapBytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long[] atStart = heapAtStart.get(pool.getName());
+            if (pool.getType() != MemoryType.HEAP || atStart == null || pool.getPeakUsage() == null) {
+                continue;
+            }
+            long peak = pool.getPeakUsage().getUsed();
+            peakHeapBytes += peak > atStart[1] ? peak : Math.max(atStart[0], pool.getUsage().getUsed());
+        }
+        commitEvents();
+    }
+    
+    /**
+     * Память, выделенная текущим потоком с его запуска, или -1, если JVM этого не поддерживает
+     */
+    static long threadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) threads;
+            if (extended.isThreadAllocatedMemorySupported() && extended.isThreadAllocatedMemoryEnabled()) {
+                return extended.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+    
+    void addPhase(String phase, long nanos) {
+        phases.computeIfAbsent(phase, name -> new LongAdder()).add(nanos);
+    }
+    
+    void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+    
+    void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+    
+    void addLines(long count) {
+        lines.add(count);
+    }
+    
+    void addAllocatedBytes(long bytes) {
+        if (bytes > 0) {
+            allocatedBytes.add(bytes);
+        }
+    }
+    
+    /**
+     * @param lookups сколько строк искали в словаре (множестве уже встреченных строк)
+     * @param hits сколько из них там уже было
+     */
+    void addDictionaryLookups(long lookups, long hits) {
+        dictionaryLookups.add(lookups);
+        dictionaryHits.add(hits);
+    }
+    
+    long getLines() {
+        return lines.sum();
+    }
+    
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+    
+    double getDictionaryHitRatio() {
+        long lookups = dictionaryLookups.sum();
+        return lookups == 0 ? 0 : (double) dictionaryHits.sum() / lookups;
+    }
+    
+    private double perSecond(long value) {
+        return elapsedNanos == 0 ? 0 : value * 1e9 / elapsedNanos;
+    }
+    
+    Map<String, Object> toMap() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("operation", operation);
+        report.put("elapsedMs", elapsedNanos / 1_000_000);
+        report.put("bytesIn", bytesIn.sum());
+        report.put("bytesOut", bytesOut.sum());
+        report.put("lines", lines.sum());
+        report.put("bytesPerSecond", Math.round(perSecond(bytesIn.sum())));
+        report.put("linesPerSecond", Math.round(perSecond(lines.sum())));
+        report.put("peakHeapBytes", peakHeapBytes);
+        report.put("allocatedBytes", allocatedBytes.sum());
+        report.put("allocationRateBytesPerSecond", Math.round(perSecond(allocatedBytes.sum())));
+        report.put("dictionaryHitRatio", getDictionaryHitRatio());
+        Map<String, Object> phaseTimes = new LinkedHashMap<>();
+        synchronized (phases) {
+            for (Map.Entry<String, LongAdder> phase : phases.entrySet()) {
+                phaseTimes.put(phase.getKey() + "Ms", phase.getValue().sum() / 1_000_000.0);
+            }
+        }
+        report.put("phases", phaseTimes);
+        return report;
+    }
+    
+    String toJson() {
+        return Json.object(toMap());
+    }
+    
+    void writeReport(Path reportFile) throws IOException {
+        Files.write(reportFile, Collections.singletonList(toJson()), StandardCharsets.UTF_8);
+    }
+    
+    private void commitEvents() {
+        if (runEvent.shouldCommit()) {
+            runEvent.operation = operation;
+            runEvent.bytesIn = bytesIn.sum();
+            runEvent.bytesOut = bytesOut.sum();
+            runEvent.lines = lines.sum();
+            runEvent.peakHeapBytes = peakHeapBytes;
+            runEvent.allocatedBytes = allocatedBytes.sum();
+            runEvent.dictionaryHitRatio = getDictionaryHitRatio();
+            runEvent.commit();
+        }
+        synchronized (phases) {
+            for (Map.Entry<String, LongAdder> phase : phases.entrySet()) {
+                PipelinePhaseEvent event = new PipelinePhaseEvent();
+                if (event.isEnabled()) {
+                    event.operation = operation;
+                    event.phase = phase.getKey();
+                    event.phaseTime = phase.getValue().sum();
+                    event.commit();
+                }
+            }
+        }
+    }
+}
+
+@Name("filetools.PipelineRun")
+@Label("Pipeline Run")
+@Category("File Tools")
+class PipelineRunEvent extends Event {
+    @Label("Operation")
+    String operation;
+    @Label("Bytes In")
+    @DataAmount
+    long bytesIn;
+    @Label("Bytes Out")
+    @DataAmount
+    long bytesOut;
+    @Label("Lines")
+    long lines;
+    @Label("Peak Heap")
+    @DataAmount
+    long peakHeapBytes;
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+    @Label("Dictionary Hit Ratio")
+    @Percentage
+    double dictionaryHitRatio;
+}
+
+/**
+ * Суммарное время одного этапа за проход; событие записывается в конце прохода
+ */
+@Name("filetools.PipelinePhase")
+@Label("Pipeline Phase")
+@Category("File Tools")
+class PipelinePhaseEvent extends Event {
+    @Label("Operation")
+    String operation;
+    @Label("Phase")
+    String phase;
+    @Label("Phase Time")
+    @Timespan
+    long phaseTime;
+}
+
+/**
+ * Запись простых JSON-объектов в одну строку: строки, числа, логические значения,
+ * null и вложенные Map
+ */
+class Json {
+    static String object(Map<String, ?> values) {
+        StringBuilder json = new StringBuilder();
+        appendObject(json, values);
+        return json.toString();
+    }
+    
+    private static void appendObject(StringBuilder json, Map<String, ?> values) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, entry.getKey());
+            json.append(':');
+            appendValue(json, entry.getValue());
+        }
+        json.append('}');
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void appendValue(StringBuilder json, Object value) {
+        if (value instanceof Map) {
+            appendObject(json, (Map<String, ?>) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            json.append(Double.isFinite(number) ? String.format(Locale.ROOT, "%.4f", number) : "null");
+        } else if (value == null || value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else {
+            appendString(json, value.toString());
+        }
+    }
+    
+    static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
+
+/**
+ * Определение кодировки по первым SAMPLE_SIZE байтам файла:
+ * BOM, затем проверка корректности UTF-8, а для остальных файлов выбор между
+ * windows-1251 и KOI8-R по статистике байтов. В обеих кодировках русские буквы
+ * занимают диапазон 0xC0-0xFF, но строчные в windows-1251 лежат в 0xE0-0xFF,
+ * а в KOI8-R - в 0xC0-0xDF; в обычном тексте строчных букв намного больше.
+ */
+class CharsetDetector {
+    static final int SAMPLE_SIZE = 64 * 1024;
+    static final Charset WINDOWS_1251 = Charset.forName("windows-1251");
+    static final Charset KOI8_R = Charset.forName("KOI8-R");
+    
+    static Charset detect(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, channel.size()));
+            while (sample.hasRemaining() && channel.read(sample) >= 0) {
+                // читаем, пока образец не заполнится
+            }
+            return detect(sample.array(), sample.position(), sample.position() < channel.size());
+        }
+    }
+    
+    /**
+     * @param truncated образец обрезан, и последний символ UTF-8 может быть неполным
+     */
+    static Charset detect(byte[] sample, int length, boolean truncated) {
+        if (length >= 3 && (sample[0] & 0xFF) == 0xEF && (sample[1] & 0xFF) == 0xBB && (sample[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (length >= 2 && (sample[0] & 0xFF) == 0xFE && (sample[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (length >= 2 && (sample[0] & 0xFF) == 0xFF && (sample[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (isValidUtf8(sample, length, truncated)) {
+            return StandardCharsets.UTF_8;
+        }
+        
+        int upperRange = 0, lowerRange = 0;
+        for (int i = 0; i < length; i++) {
+            int b = sample[i] & 0xFF;
+            if (b >= 0xE0) {
+                lowerRange++;
+            } else if (b >= 0xC0) {
+                upperRange++;
+            }
+        }
+        return upperRange > lowerRange ? KOI8_R : WINDOWS_1251;
+    }
+    
+    private static boolean isValidUtf8(byte[] sample, int length, boolean truncated) {
+        int i = 0;
+        while (i < length) {
+            int b = sample[i] & 0xFF;
+            int continuation;
+            if (b < 0x80) {
+                i++;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                continuation = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuation = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuation = 3;
+            } else {
+                return false;
+            }
+            if (i + continuation >= length) {
+                // Символ, разрезанный концом образца, не считается ошибкой
+                return truncated && hasContinuationBytes(sample, i + 1, length);
+            }
+            if (!hasContinuationBytes(sample, i + 1, i + 1 + continuation)) {
+                return false;
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+    
+    private static boolean hasContinuationBytes(byte[] sample, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if ((sample[i] & 0xC0) != 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Однобайтовая кодировка, совместимая с ASCII: строки можно делить
+     * и сравнивать по байтам без декодирования
+     */
+    static boolean isSingleByte(Charset charset) {
+        if (!charset.canEncode() || charset.equals(StandardCharsets.US_ASCII)) {
+            return false;
+        }
+        CharsetEncoder encoder = charset.newEncoder();
+        return encoder.maxBytesPerChar() == 1 && encoder.canEncode('\n') && encoder.canEncode('\r');
+    }
+}
+
+/**
+ * Счетчики одного прохода удаления дубликатов
+ */
+class DedupStats {
+    long totalLines;
+    long uniqueLines;
+    
+    long duplicatesRemoved() {
+        return totalLines - uniqueLines;
+    }
+}
+
+/**
+ * 128-битный отпечаток строки. Объект переиспользуется между строками,
+ * чтобы хеширование не создавало мусора.
+ */
+class LineFingerprint {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    
+    long hi;
+    long lo;
+    
+    void hash(CharSequence text) {
+        long h1 = 0x9e3779b97f4a7c15L;
+        long h2 = 0xc2b2ae3d27d4eb4fL;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            long c = text.charAt(i);
+            h1 = Long.rotateLeft(h1 ^ (c * C1), 31) * C2;
+            h2 = Long.rotateLeft(h2 ^ (c * C2), 33) * C1 + h1;
+        }
+        finish(h1, h2, length);
+    }
+    
+    /**
+     * Хеширует байты buffer[from, to) без декодирования в строку.
+     * Читает по 8 байт за раз абсолютными обращениями, позиция буфера не меняется.
+     */
+    void hash(ByteBuffer buffer, int from, int to) {
+        long h1 = 0x9e3779b97f4a7c15L;
+        long h2 = 0xc2b2ae3d27d4eb4fL;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long k = buffer.getLong(i);
+            h1 = Long.rotateLeft(h1 ^ (k * C1), 31) * C2;
+            h2 = Long.rotateLeft(h2 ^ (k * C2), 33) * C1 + h1;
+        }
+        long tail = 0;
+        for (; i < to; i++) {
+            tail = (tail << 8) | (buffer.get(i) & 0xff);
+        }
+        h1 = Long.rotateLeft(h1 ^ (tail * C1), 31) * C2;
+        h2 = Long.rotateLeft(h2 ^ (tail * C2), 33) * C1 + h1;
+        finish(h1, h2, to - from);
+    }
+    
+    private void finish(long h1, long h2, long length) {
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = mix(h1);
+        h2 = mix(h2);
+        h1 += h2;
+        h2 += h1;
+        hi = h1;
+        lo = h2;
+    }
+    
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
+
+/**
+ * Множество 128-битных отпечатков с открытой адресацией поверх массива long.
+ * Память зависит только от количества уникальных строк, а не от их длины.
+ */
+class FingerprintSet {
+    // Наибольшее число слотов: массив из 2 * MAX_CAPACITY long еще помещается в int-индекс
+    static final int MAX_CAPACITY = 1 << 29;
+    
+    private long[] slots;
+    private int mask;
+    private int size;
+    private boolean containsZero;
+    // Добавленные отпечатки (пары hi, lo) для журнала; null - журнал не ведется
+    private long[] added;
+    private int addedLength;
+    private long addedLimit;
+    
+    FingerprintSet() {
+        slots = new long[(1 << 17) * 2];
+        mask = (1 << 17) - 1;
+    }
+    
+    FingerprintSet(int expectedSize) throws IOException {
+        long capacity = Long.highestOneBit(Math.max(16, expectedSize * 2L - 1)) << 1;
+        if (expectedSize <= MAX_CAPACITY / 4 * 3) {
+            capacity = Math.min(capacity, MAX_CAPACITY);
+        }
+        checkCapacity(capacity);
+        slots = new long[(int) capacity * 2];
+        mask = (int) capacity - 1;
+    }
+    
+    /**
+     * @return true, если отпечаток встретился впервые
+     * @throws IOException если уникальных строк больше, чем вмещает таблица
+     */
+    boolean add(long hi, long lo) throws IOException {
+        if (hi == 0 && lo == 0) {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            logAdded(hi, lo);
+            return true;
+        }
+        int index = (int) (lo ^ (lo >>> 32)) & mask;
+        while (true) {
+            long slotHi = slots[index * 2];
+            long slotLo = slots[index * 2 + 1];
+            if (slotHi == 0 && slotLo == 0) {
+                slots[index * 2] = hi;
+                slots[index * 2 + 1] = lo;
+                if (++size > (mask + 1) * 3 / 4) {
+                    grow();
+                }
+                logAdded(hi, lo);
+                return true;
+            }
+            if (slotHi == hi && slotLo == lo) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Начинает запоминать добавляемые отпечатки. Если они займут больше maxBytes
+     * (при записи парами long), журнал отключается: дешевле переписать набор целиком.
+     */
+    void trackAdded(long maxBytes) {
+        added = maxBytes > 0 ? new long[256] : null;
+        addedLength = 0;
+        addedLimit = maxBytes;
+    }
+    
+    boolean isTrackingAdded() {
+        return added != null;
+    }
+    
+    int addedCount() {
+        return addedLength / 2;
+    }
+    
+    /**
+     * Записывает отпечатки, добавленные с прошлого вызова, парами long и очищает журнал
+     */
+    void writeAddedTo(DataOutput out) throws IOException {
+        for (int i = 0; i < addedLength; i++) {
+            out.writeLong(added[i]);
+        }
+        addedLength = 0;
+    }
+    
+    private void logAdded(long hi, long lo) {
+        if (added == null) {
+            return;
+        }
+        if ((addedLength + 2) * 8L > addedLimit) {
+            added = null;
+            return;
+        }
+        if (addedLength + 2 > added.length) {
+            added = Arrays.copyOf(added, added.length * 2);
+        }
+        added[addedLength++] = hi;
+        added[addedLength++] = lo;
+    }
+    
+    /**
+     * Записывает отпечатки в компактном виде: количество, затем пары long
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        if (containsZero) {
+            out.writeLong(0);
+            out.writeLong(0);
+        }
+        for (int i = 0; i < slots.length; i += 2) {
+            if (slots[i] != 0 || slots[i + 1] != 0) {
+                out.writeLong(slots[i]);
+                out.writeLong(slots[i + 1]);
+            }
+        }
+    }
+    
+    static FingerprintSet readFrom(DataInput in) throws IOException {
+        int count = in.readInt();
+        FingerprintSet set = new FingerprintSet(count);
+        for (int i = 0; i < count; i++) {
+            set.add(in.readLong(), in.readLong());
+        }
+        return set;
+    }
+    
+    private static void checkCapacity(long capacity) throws IOException {
+        if (capacity > MAX_CAPACITY) {
+            throw new IOException("Слишком много уникальных строк для таблицы отпечатков в памяти (больше "
+                + MAX_CAPACITY / 4 * 3 + "); используйте FileDeduplicator.removeDuplicatesExternal");
+        }
+    }
+    
+    private void grow() throws IOException {
+        checkCapacity((mask + 1) * 2L);
+        long[] old = slots;
+        int capacity = (mask + 1) * 2;
+        slots = new long[capacity * 2];
+        mask = capacity - 1;
+        for (int i = 0; i < old.length; i += 2) {
+            long hi = old[i];
+            long lo = old[i + 1];
+            if (hi == 0 && lo == 0) continue;
+            int index = (int) (lo ^ (lo >>> 32)) & mask;
+            while (slots[index * 2] != 0 || slots[index * 2 + 1] != 0) {
+                index = (index + 1) & mask;
+            }
+            slots[index * 2] = hi;
+            slots[index * 2 + 1] = lo;
+        }
+    }
+}
+
+/**
+ * Индекс повторов строк, построенный за один проход.
+ * Для каждой различной строки хранит количество вхождений и номера
+ * первого и последнего вхождения (строки нумеруются с 1).
+ * Порядок перебора совпадает с порядком первых вхождений.
+ */
+class LineCountIndex {
+    static class Entry {
+        final String line;
+        final long firstLine;
+        long lastLine;
+        int count;
+        
+        Entry(String line, long lineNumber) {
+            this.line = line;
+            this.firstLine = lineNumber;
+            this.lastLine = lineNumber;
+        }
+    }
+    
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long totalLines;
+    
+    void add(String line) {
+        long lineNumber = ++totalLines;
+        Entry entry = entries.get(line);
+        if (entry == null) {
+            entry = new Entry(line, lineNumber);
+            entries.put(line, entry);
+        }
+        entry.count++;
+        entry.lastLine = lineNumber;
+    }
+    
+    long totalLines() {
+        return totalLines;
+    }
+    
+    Collection<Entry> entries() {
+        return entries.values();
+    }
+    
+    /**
+     * Возвращает n самых частых дубликатов по убыванию числа вхождений.
+     * Использует кучу размера n, поэтому не сортирует весь индекс.
+     */
+    List<Entry> topDuplicated(int n) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        Comparator<Entry> order = Comparator.<Entry>comparingInt(e -> e.count)
+            .thenComparing(Comparator.<Entry>comparingLong(e -> e.firstLine).reversed());
+        PriorityQueue<Entry> heap = new PriorityQueue<>(n + 1, order);
+        for (Entry entry : entries.values()) {
+            if (entry.count < 2) continue;
+            if (heap.size() < n) {
+                heap.add(entry);
+            } else if (order.compare(entry, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        List<Entry> top = new ArrayList<>(heap);
+        top.sort(order.reversed());
+        return top;
+    }
+}
+
+/**
+ * Приведение строки к нормальной форме перед поиском дубликатов.
+ * Нормализаторы объединяются в цепочку через andThen.
+ */
+interface LineNormalizer {
+    String normalize(String line);
+    
+    default LineNormalizer andThen(LineNormalizer next) {
+        return line -> next.normalize(normalize(line));
+    }
+    
+    static LineNormalizer identity() {
+        return line -> line;
+    }
+    
+    /**
+     * Убирает пробелы по краям и схлопывает повторяющиеся пробельные символы
+     */
+    static LineNormalizer trim() {
+        Pattern whitespace = Pattern.compile("\\s+");
+        return line -> whitespace.matcher(line.trim()).replaceAll(" ");
+    }
+    
+    static LineNormalizer lowerCase() {
+        return line -> line.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Заменяет каждое число (в том числе дробное) на символ #
+     */
+    static LineNormalizer maskNumbers() {
+        return mask("\\d+(?:[.,:]\\d+)*", "#");
+    }
+    
+    /**
+     * Заменяет все совпадения регулярного выражения, например временные метки или идентификаторы запросов
+     */
+    static LineNormalizer mask(String regex, String replacement) {
+        Pattern pattern = Pattern.compile(regex);
+        String quoted = Matcher.quoteReplacement(replacement);
+        return line -> pattern.matcher(line).replaceAll(quoted);
+    }
+}
+
+/**
+ * Поиск похожих строк через MinHash и LSH.
+ * Для каждой строки строится подпись из минимумов хешей ее символьных k-грамм;
+ * доля совпадающих позиций подписей оценивает коэффициент Жаккара.
+ * Подпись делится на полосы, и строки сравниваются только с теми,
+ * у кого совпала хотя бы одна полоса, поэтому число сравнений не растет квадратично.
+ */
+class NearDuplicateDetector {
+    private static final int SIGNATURE_SIZE = 32;
+    private static final int SHINGLE_SIZE = 4;
+    // Сколько строк хранится в одном бакете; ограничивает худший случай проверки
+    private static final int MAX_BUCKET_SIZE = 32;
+    
+    private final double threshold;
+    private final int bands;
+    private final int rows;
+    private final long[] seeds = new long[SIGNATURE_SIZE];
+    private final int[] signature = new int[SIGNATURE_SIZE];
+    private final Map<Long, int[]> buckets = new HashMap<>();
+    private int[] signatures = new int[SIGNATURE_SIZE * 1024];
+    private int count;
+    
+    NearDuplicateDetector(double threshold) {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("Порог должен быть в диапазоне (0, 1]: " + threshold);
+        }
+        this.threshold = threshold;
+        this.rows = chooseRows(threshold);
+        this.bands = SIGNATURE_SIZE / rows;
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            seeds[i] = random.nextLong();
+        }
+    }
+    
+    /**
+     * Подбирает число строк в полосе так, чтобы порог LSH (1/b)^(1/r)
+     * был ближе всего к заданному, но не выше его
+     */
+    private static int chooseRows(double threshold) {
+        int best = 1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int r = 1; r <= SIGNATURE_SIZE; r *= 2) {
+            double lshThreshold = Math.pow(1.0 / (SIGNATURE_SIZE / r), 1.0 / r);
+            if (lshThreshold <= threshold && threshold - lshThreshold < bestDistance) {
+                best = r;
+                bestDistance = threshold - lshThreshold;
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * @return true, если строка похожа на одну из ранее добавленных; иначе строка добавляется
+     */
+    boolean checkAndAdd(String line) {
+        computeSignature(line);
+        
+        for (int band = 0; band < bands; band++) {
+            int[] bucket = buckets.get(bandKey(band));
+            if (bucket == null) continue;
+            for (int i = 1; i <= bucket[0]; i++) {
+                if (similarity(bucket[i]) >= threshold) {
+                    return true;
+                }
+            }
+        }
+        
+        int id = count++;
+        if (signatures.length < count * SIGNATURE_SIZE) {
+            signatures = Arrays.copyOf(signatures, signatures.length * 2);
+        }
+        System.arraycopy(signature, 0, signatures, id * SIGNATURE_SIZE, SIGNATURE_SIZE);
+        for (int band = 0; band < bands; band++) {
+            addToBucket(bandKey(band), id);
+        }
+        return false;
+    }
+    
+    private void computeSignature(String line) {
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int length = line.length();
+        int shingles = Math.max(1, length - SHINGLE_SIZE + 1);
+        for (int start = 0; start < shingles; start++) {
+            long shingle = 0;
+            for (int i = start; i < Math.min(length, start + SHINGLE_SIZE); i++) {
+                shingle = shingle * 31 + line.charAt(i);
+            }
+            for (int h = 0; h < SIGNATURE_SIZE; h++) {
+                int value = (int) (mix(shingle ^ seeds[h]) >>> 33);
+                if (value < signature[h]) {
+                    signature[h] = value;
+                }
+            }
+        }
+    }
+    
+    private double similarity(int id) {
+        int offset = id * SIGNATURE_SIZE;
+        int equal = 0;
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            if (signatures[offset + i] == signature[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / SIGNATURE_SIZE;
+    }
+    
+    private long bandKey(int band) {
+        long key = band;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            key = key * 0x100000001b3L + signature[i];
+        }
+        return mix(key);
+    }
+    
+    /**
+     * Бакет хранится как массив int, где нулевой элемент - количество строк
+     */
+    private void addToBucket(long key, int id) {
+        int[] bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new int[4];
+            buckets.put(key, bucket);
+        } else if (bucket[0] >= MAX_BUCKET_SIZE) {
+            return;
+        } else if (bucket[0] + 1 == bucket.length) {
+            bucket = Arrays.copyOf(bucket, Math.min(bucket.length * 2, MAX_BUCKET_SIZE + 1));
+            buckets.put(key, bucket);
+        }
+        bucket[++bucket[0]] = id;
+    }
+    
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
+
+/**
+ * Внешняя сортировка для удаления дубликатов, когда уникальные строки не помещаются в память.
+ * 
+ * 1. Строки с порядковыми номерами раскладываются по разделам по хешу и, когда
+ *    буфер превышает бюджет памяти, сбрасываются на диск отсортированными порциями.
+ * 2. Порции каждого раздела сливаются по (строка, номер); от каждой строки
+ *    остается первое вхождение, выжившие строки сортируются по номеру.
+ * 3. Упорядоченные по номеру порции сливаются в выходной файл.
+ */
+class ExternalDeduplicator {
+    private static final int PARTITIONS = 16;
+    private static final int MAX_MERGE_FAN_IN = 128;
+    private static final int RUN_BUFFER_SIZE = 1 << 16;
+    private static final long END_OF_RUN = -1;
+    
+    private static final Comparator<Record> BY_LINE =
+        Comparator.comparing((Record r) -> r.line).thenComparingLong(r -> r.seq);
+    private static final Comparator<Record> BY_SEQ = Comparator.comparingLong(r -> r.seq);
+    
+    private final long memoryBudget;
+    private final Path tempDir;
+    // Кодировка итоговой информации и кодировка, в которой переносятся строки
+    private final Charset charset;
+    private final Charset lineCharset;
+    private Path workDir;
+    private int nextRunId;
+    
+    ExternalDeduplicator(long memoryBudget, Path tempDir, Charset charset) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Бюджет памяти должен быть положительным: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+        this.charset = charset;
+        this.lineCharset = CharsetDetector.isSingleByte(charset) ? StandardCharsets.ISO_8859_1 : charset;
+    }
+    
+    DedupStats run(Path inputFile, Path outputFile) throws IOException {
+        DedupStats stats = new DedupStats();
+        workDir = Files.createTempDirectory(tempDir, "dedup-");
+        try {
+            List<List<Path>> partitionRuns = spillPartitionedRuns(inputFile, stats);
+            
+            List<Path> orderedRuns = new ArrayList<>();
+            List<Record> survivors = new ArrayList<>();
+            long survivorBytes = 0;
+            for (List<Path> runs : partitionRuns) {
+                if (runs.isEmpty()) continue;
+                Path merged = reduceRuns(runs, BY_LINE, true);
+                try (RunReader reader = new RunReader(merged)) {
+                    while (reader.current != null) {
+                        Record record = reader.current;
+                        stats.uniqueLines++;
+                        survivors.add(record);
+                        survivorBytes += estimateSize(record.line);
+                        if (survivorBytes > memoryBudget) {
+                            orderedRuns.add(spill(survivors, BY_SEQ, false));
+                            survivorBytes = 0;
+                        }
+                        reader.advance();
+                    }
+                }
+                Files.delete(merged);
+            }
+            if (!survivors.isEmpty()) {
+                orderedRuns.add(spill(survivors, BY_SEQ, false));
+            }
+            
+            writeOrdered(orderedRuns, outputFile, stats);
+        } finally {
+            deleteWorkDir();
+        }
+        return stats;
+    }
+    
+    /**
+     * Первый проход: раскладывает строки по разделам и сбрасывает их на диск порциями
+     */
+    private List<List<Path>> spillPartitionedRuns(Path inputFile, DedupStats stats) throws IOException {
+        List<List<Path>> partitionRuns = new ArrayList<>();
+        List<List<Record>> buffers = new ArrayList<>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitionRuns.add(new ArrayList<>());
+            buffers.add(new ArrayList<>());
+        }
+        
+        long bufferedBytes = 0;
+        try (BufferedReader reader = FileDeduplicator.newLineReader(inputFile, lineCharset)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Record record = new Record(stats.totalLines++, line);
+                buffers.get(Math.floorMod(line.hashCode(), PARTITIONS)).add(record);
+                bufferedBytes += estimateSize(line);
+                if (bufferedBytes > memoryBudget) {
+                    spillPartitions(buffers, partitionRuns);
+                    bufferedBytes = 0;
+                }
+            }
+        }
+        spillPartitions(buffers, partitionRuns);
+        return partitionRuns;
+    }
+    
+    private void spillPartitions(List<List<Record>> buffers, List<List<Path>> partitionRuns) throws IOException {
+        for (int i = 0; i < PARTITIONS; i++) {
+            List<Record> buffer = buffers.get(i);
+            if (!buffer.isEmpty()) {
+                partitionRuns.get(i).add(spill(buffer, BY_LINE, true));
+            }
+        }
+    }
+    
+    /**
+     * Сортирует буфер, записывает его во временный файл и очищает.
+     * При distinct (порядок BY_LINE) из одинаковых соседних строк записывается первая,
+     * с меньшим номером: порция без дубликатов, даже если слияние не понадобится.
+     */
+    private Path spill(List<Record> buffer, Comparator<Record> order, boolean distinct) throws IOException {
+        buffer.sort(order);
+        Path run = newRunFile();
+        try (RunWriter writer = new RunWriter(run)) {
+            String previousLine = null;
+            for (Record record : buffer) {
+                if (!distinct || !record.line.equals(previousLine)) {
+                    writer.write(record);
+                    previousLine = record.line;
+                }
+            }
+        }
+        buffer.clear();
+        return run;
+    }
+    
+    /**
+     * Сливает порции группами, пока не останется одна.
+     * При distinct от одинаковых строк остается запись с меньшим номером.
+     */
+    private Path reduceRuns(List<Path> runs, Comparator<Record> order, boolean distinct) throws IOException {
+        List<Path> pending = new ArrayList<>(runs);
+        while (pending.size() > 1) {
+            List<Path> next = new ArrayList<>();
+            for (int from = 0; from < pending.size(); from += MAX_MERGE_FAN_IN) {
+                List<Path> group = pending.subList(from, Math.min(pending.size(), from + MAX_MERGE_FAN_IN));
+                Path merged = newRunFile();
+                try (RunWriter writer = new RunWriter(merged)) {
+                    merge(group, order, distinct, writer::write);
+                }
+                for (Path run : group) {
+                    Files.delete(run);
+                }
+                next.add(merged);
+            }
+            pending = next;
+        }
+        return pending.get(0);
+    }
+    
+    /**
+     * Итоговый проход: пишет выжившие строки в исходном порядке и добавляет статистику
+     */
+    private void writeOrdered(List<Path> orderedRuns, Path outputFile, DedupStats stats) throws IOException {
+        if (orderedRuns.size() > MAX_MERGE_FAN_IN) {
+            orderedRuns = Collections.singletonList(reduceRuns(orderedRuns, BY_SEQ, false));
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outputFile),
+                                                         FileDeduplicator.STREAM_BUFFER_SIZE)) {
+            Writer writer = new OutputStreamWriter(out, lineCharset.newEncoder());
+            String separator = System.lineSeparator();
+            merge(orderedRuns, BY_SEQ, false, record -> {
+                writer.write(record.line);
+                writer.write(separator);
+            });
+            writer.flush();
+            out.write(FileDeduplicator.infoBytes(FileDeduplicator.buildDuplicatesInfo(
+                stats.duplicatesRemoved(), stats.uniqueLines, stats.totalLines), charset));
+        }
+    }
+    
+    /**
+     * k-путевое слияние отсортированных порций через очередь с приоритетом
+     */
+    private static void merge(List<Path> runs, Comparator<Record> order, boolean distinct,
+                              RecordSink sink) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(
+            Math.max(1, runs.size()), (a, b) -> order.compare(a.current, b.current));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.current != null) {
+                    queue.add(reader);
+                }
+            }
+            
+            String previousLine = null;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                Record record = reader.current;
+                if (!distinct || !record.line.equals(previousLine)) {
+                    sink.accept(record);
+                    previousLine = record.line;
+                }
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+    
+    private Path newRunFile() {
+        return workDir.resolve("run-" + (nextRunId++) + ".bin");
+    }
+    
+    private void deleteWorkDir() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(workDir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(workDir);
+    }
+    
+    /**
+     * Грубая оценка памяти под запись: объекты Record и String плюс символы
+     */
+    private static long estimateSize(String line) {
+        return 96 + 2L * line.length();
+    }
+    
+    static class Record {
+        final long seq;
+        final String line;
+        
+        Record(long seq, String line) {
+            this.seq = seq;
+            this.line = line;
+        }
+    }
+    
+    interface RecordSink {
+        void accept(Record record) throws IOException;
+    }
+    
+    /**
+     * Формат порции: [номер строки][длина в байтах][UTF-8], в конце номер -1
+     */
+    static class RunWriter implements Closeable {
+        private final DataOutputStream out;
+        
+        RunWriter(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), RUN_BUFFER_SIZE));
+        }
+        
+        void write(Record record) throws IOException {
+            byte[] bytes = record.line.getBytes(StandardCharsets.UTF_8);
+            out.writeLong(record.seq);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            out.writeLong(END_OF_RUN);
+            out.close();
+        }
+    }
+    
+    static class RunReader implements Closeable {
+        private final DataInputStream in;
+        Record current;
+        
+        RunReader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), RUN_BUFFER_SIZE));
+            advance();
+        }
+        
+        boolean advance() throws IOException {
+            long seq = in.readLong();
+            if (seq == END_OF_RUN) {
+                current = null;
+                return false;
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            current = new Record(seq, new String(bytes, StandardCharsets.UTF_8));
+            return true;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
+
+/**
+ * Работа со строками файла, отображенного в память фрагментами.
+ * Строки разделяются так же, как в BufferedReader.readLine: \n, \r или \r\n.
+ */
+class MappedLines {
+    static final long DEFAULT_CHUNK_SIZE = 256L << 20;
+    
+    /**
+     * Делит файл на фрагменты, заканчивающиеся переводом строки, и отображает их в память
+     */
+    static List<ByteBuffer> mapChunks(FileChannel channel, long chunkSize) throws IOException {
+        return mapChunks(channel, 0, channel.size(), chunkSize);
+    }
+    
+    /**
+     * То же для диапазона [from, size) файла
+     */
+    static List<ByteBuffer> mapChunks(FileChannel channel, long from, long size, long chunkSize) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        long start = from;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            // Сдвигаем границу за ближайший \n, чтобы не разрезать строку и пару \r\n
+            while (end < size) {
+                probe.clear();
+                probe.limit((int) Math.min(probe.capacity(), size - end));
+                int read = channel.read(probe, end);
+                if (read <= 0) {
+                    end = size;
+                    break;
+                }
+                int newline = -1;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += read;
+            }
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Слишком длинная строка в районе смещения " + start);
+            }
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            start = end;
+        }
+        return chunks;
+    }
+    
+    interface LineVisitor {
+        void visit(int start, int end, int next, int index);
+    }
+    
+    /**
+     * Перебирает строки фрагмента: [start, end) - байты строки без разделителя,
+     * next - начало следующей строки, index - номер строки внутри фрагмента
+     */
+    static void forEachLine(ByteBuffer chunk, LineVisitor visitor) {
+        int limit = chunk.limit();
+        int start = 0;
+        int index = 0;
+        int i = 0;
+        while (i < limit) {
+            byte b = chunk.get(i);
+            if (b == '\n' || b == '\r') {
+                int end = i++;
+                if (b == '\r' && i < limit && chunk.get(i) == '\n') {
+                    i++;
+                }
+                visitor.visit(start, end, i, index++);
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (start < limit) {
+            visitor.visit(start, limit, limit, index);
+        }
+    }
+    
+    static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+}
+
+/**
+ * Однопоточное удаление дубликатов на уровне байтов.
+ * Уникальные строки, за которыми в исходном файле стоит тот же разделитель,
+ * что и System.lineSeparator(), копируются вместе с ним; соседние такие строки
+ * объединяются в один диапазон. Длинные диапазоны передаются через
+ * FileChannel.transferTo без копирования в память процесса, короткие
+ * собираются в буфер, чтобы не делать системный вызов на каждую строку.
+ * Строки с другим разделителем пишутся с системным разделителем.
+ */
+class ByteDeduplicator {
+    private static final int TRANSFER_THRESHOLD = 64 * 1024;
+    
+    private final byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(FileDeduplicator.STREAM_BUFFER_SIZE);
+    private final FingerprintSet seen;
+    private final LineFingerprint fingerprint = new LineFingerprint();
+    
+    private FileChannel in;
+    private FileChannel out;
+    private ByteBuffer chunk;
+    private long chunkOffset;
+    // Накопленный диапазон текущего фрагмента, который еще не скопирован
+    private int pendingStart = -1;
+    private int pendingEnd = -1;
+    
+    ByteDeduplicator() {
+        this(new FingerprintSet());
+    }
+    
+    /**
+     * @param seen отпечатки строк, которые уже есть в выходном файле
+     */
+    ByteDeduplicator(FingerprintSet seen) {
+        this.seen = seen;
+    }
+    
+    DedupStats run(Path inputFile, Path outputFile) throws IOException {
+        return run(inputFile, outputFile, Charset.defaultCharset());
+    }
+    
+    /**
+     * @param infoCharset кодировка итоговой информации в конце файла
+     */
+    DedupStats run(Path inputFile, Path outputFile, Charset infoCharset) throws IOException {
+        DedupStats stats = new DedupStats();
+        try (FileChannel input = FileChannel.open(inputFile, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            process(input, 0, input.size(), output, stats);
+            
+            byte[] info = FileDeduplicator.buildDuplicatesInfo(
+                stats.duplicatesRemoved(), stats.uniqueLines, stats.totalLines).getBytes(infoCharset);
+            MappedLines.writeFully(output, ByteBuffer.wrap(info));
+        }
+        return stats;
+    }
+    
+    /**
+     * Обрабатывает строки диапазона [from, to) и дописывает новые строки
+     * с текущей позиции output. Итоговая информация не записывается.
+     */
+    void process(FileChannel input, long from, long to, FileChannel output, DedupStats stats) throws IOException {
+        in = input;
+        out = output;
+        try {
+            chunkOffset = from;
+            for (ByteBuffer mapped : MappedLines.mapChunks(in, from, to, MappedLines.DEFAULT_CHUNK_SIZE)) {
+                chunk = mapped;
+                MappedLines.forEachLine(chunk, (start, end, next, index) -> {
+                    stats.totalLines++;
+                    fingerprint.hash(mapped, start, end);
+                    if (add(fingerprint.hi, fingerprint.lo)) {
+                        stats.uniqueLines++;
+                        keep(start, end, next);
+                    }
+                });
+                flushPending();
+                chunkOffset += chunk.limit();
+            }
+            flushStaging();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    private boolean add(long hi, long lo) {
+        try {
+            return seen.add(hi, lo);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void keep(int start, int end, int next) {
+        try {
+            if (hasSystemSeparator(end, next)) {
+                if (start != pendingEnd) {
+                    flushPending();
+                    pendingStart = start;
+                }
+                pendingEnd = next;
+            } else {
+                flushPending();
+                copy(start, end);
+                write(ByteBuffer.wrap(separator));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private boolean hasSystemSeparator(int end, int next) {
+        if (next - end != separator.length) {
+            return false;
+        }
+        for (int i = 0; i < separator.length; i++) {
+            if (chunk.get(end + i) != separator[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void flushPending() throws IOException {
+        if (pendingEnd > pendingStart) {
+            copy(pendingStart, pendingEnd);
+        }
+        pendingStart = pendingEnd = -1;
+    }
+    
+    /**
+     * Копирует байты [from, to) текущего фрагмента в выходной файл
+     */
+    private void copy(int from, int to) throws IOException {
+        if (to - from < TRANSFER_THRESHOLD) {
+            ByteBuffer slice = chunk.duplicate();
+            slice.limit(to).position(from);
+            write(slice);
+            return;
+        }
+        flushStaging();
+        long position = chunkOffset + from;
+        long end = chunkOffset + to;
+        while (position < end) {
+            position += in.transferTo(position, end - position, out);
+        }
+    }
+    
+    private void write(ByteBuffer data) throws IOException {
+        if (data.remaining() > staging.remaining()) {
+            flushStaging();
+            if (data.remaining() > staging.capacity()) {
+                MappedLines.writeFully(out, data);
+                return;
+            }
+        }
+        staging.put(data);
+    }
+    
+    private void flushStaging() throws IOException {
+        staging.flip();
+        MappedLines.writeFully(out, staging);
+        staging.clear();
+    }
+}
+
+/**
+ * Запись результата через временный файл в том же каталоге.
+ * 
+ * Данные пишутся в path(), commit() сбрасывает их на диск (fsync), атомарно
+ * переименовывает временный файл в целевой и сбрасывает запись каталога.
+ * Если commit() не был вызван (исключение, прерывание), close() удаляет временный файл,
+ * а прежний целевой файл остается нетронутым: обрезанный результат никогда
+ * не появляется под итоговым именем.
+ */
+class AtomicOutput implements Closeable {
+    private final Path target;
+    private final Path temp;
+    private boolean committed;
+    
+    AtomicOutput(Path target) throws IOException {
+        this.target = target.toAbsolutePath();
+        String name = "." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp";
+        // createFile, а не createTempFile: права доступа как у обычного выходного файла
+        this.temp = Files.createFile(this.target.resolveSibling(name));
+    }
+    
+    /**
+     * Временный файл, в который пишется результат
+     */
+    Path path() {
+        return temp;
+    }
+    
+    void commit() throws IOException {
+        moveDurably(temp, target);
+        committed = true;
+    }
+    
+    /**
+     * Сбрасывает содержимое from на диск и атомарно заменяет им to.
+     * Если файловая система не поддерживает атомарное переименование,
+     * выполняется обычная замена.
+     */
+    static void moveDurably(Path from, Path to) throws IOException {
+        try (FileChannel channel = FileChannel.open(from, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(to.toAbsolutePath().getParent());
+    }
+    
+    /**
+     * Сбрасывает запись каталога после переименования. На платформах,
+     * где каталог нельзя открыть как канал (Windows), шаг пропускается.
+     */
+    private static void syncDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // запись каталога будет сброшена системой позже
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
+
+/**
+ * Инкрементальная обработка дописываемого файла с индексом отпечатков на диске.
+ * 
+ * Индекс состоит из снимка и журнала. Формат снимка: MAGIC, VERSION, поколение,
+ * fileKey исходного файла, состояние (обработанное смещение, длина и отпечаток
+ * начала файла, длина содержимого выходного файла без итоговой информации,
+ * счетчики строк) и набор отпечатков (FingerprintSet.writeTo).
+ * Журнал: JOURNAL_MAGIC, поколение снимка, затем записи - количество новых
+ * отпечатков, сами отпечатки, состояние и CRC32C записи. При сохранении в журнал
+ * дописываются только отпечатки, добавленные с прошлого сохранения, поэтому
+ * запуск по короткому хвосту не переписывает весь индекс. Когда журнал дорастает
+ * до размера снимка, снимок переписывается целиком, а журнал начинается заново.
+ * Неполная последняя запись журнала (прерванное сохранение) отбрасывается.
+ * 
+ * При заданном интервале контрольных точек индекс сохраняется после каждого
+ * обработанного участка, поэтому прерванная обработка продолжается с последней точки.
+ */
+class IncrementalDeduplicator {
+    private static final int MAGIC = 0x44445849;
+    private static final int VERSION = 2;
+    private static final int JOURNAL_MAGIC = 0x4444584A;
+    private static final int JOURNAL_HEADER_SIZE = 4 + 8;
+    // Поля состояния в записи журнала: смещение, начало файла (3), длина содержимого, счетчики (2)
+    private static final int STATE_FIELDS = 7;
+    private static final int HEAD_SIZE = 64 * 1024;
+    
+    private final Path inputFile;
+    private final Path outputFile;
+    private final Path indexFile;
+    private final Path journalFile;
+    private final long checkpointInterval;
+    private final boolean complete;
+    
+    // Состояние из индекса
+    private String fileKey = "";
+    private long processedOffset;
+    private long headLength;
+    private long headHi;
+    private long headLo;
+    private long contentLength;
+    private long totalLines;
+    private long uniqueLines;
+    private FingerprintSet seen = new FingerprintSet();
+    
+    // Снимок, к которому относится журнал, и длина журнала до конца последней целой записи
+    private long generation;
+    private long snapshotSize;
+    private long journalLength;
+    
+    IncrementalDeduplicator(Path inputFile, Path outputFile) {
+        this(inputFile, outputFile, Long.MAX_VALUE, false);
+    }
+    
+    /**
+     * @param checkpointInterval сколько байт исходного файла обрабатывается между сохранениями индекса
+     * @param complete обработать файл целиком, включая последнюю строку без перевода строки
+     */
+    IncrementalDeduplicator(Path inputFile, Path outputFile, long checkpointInterval, boolean complete) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.indexFile = indexFileFor(outputFile);
+        this.journalFile = journalFileFor(outputFile);
+        this.checkpointInterval = checkpointInterval;
+        this.complete = complete;
+    }
+    
+    static Path indexFileFor(Path outputFile) {
+        return outputFile.resolveSibling(outputFile.getFileName() + ".idx");
+    }
+    
+    static Path journalFileFor(Path outputFile) {
+        return outputFile.resolveSibling(outputFile.getFileName() + ".idx.log");
+    }
+    
+    /**
+     * Удаляет снимок и журнал индекса для outputFile
+     */
+    static void deleteIndex(Path outputFile) throws IOException {
+        Files.deleteIfExists(indexFileFor(outputFile));
+        Files.deleteIfExists(journalFileFor(outputFile));
+    }
+    
+    DedupStats run() throws IOException {
+        DedupStats stats = new DedupStats();
+        try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            String currentKey = fileKeyOf(inputFile);
+            if (!loadIndex() || !isContinuation(in, out, currentKey)) {
+                System.out.println("Индекс отсутствует или исходный файл изменен, выполняется полная обработка");
+                reset(currentKey);
+            }
+            
+            long end = complete ? in.size() : lastLineEnd(in, processedOffset, in.size());
+            // Отбрасываем старую итоговую информацию (или строки после контрольной точки)
+            out.truncate(contentLength);
+            out.position(contentLength);
+            ByteDeduplicator deduplicator = new ByteDeduplicator(seen);
+            while (processedOffset < end) {
+                long segmentEnd = end;
+                if (end - processedOffset > checkpointInterval) {
+                    segmentEnd = lastLineEnd(in, processedOffset, processedOffset + checkpointInterval);
+                    if (segmentEnd == processedOffset) {
+                        // Строка длиннее интервала: обрабатываем остаток без контрольных точек
+                        segmentEnd = end;
+                    }
+                }
+                DedupStats segment = new DedupStats();
+                deduplicator.process(in, processedOffset, segmentEnd, out, segment);
+                
+                if (processedOffset == 0 && segmentEnd > 0) {
+                    rememberHead(in, segmentEnd);
+                }
+                processedOffset = segmentEnd;
+                contentLength = out.position();
+                totalLines += segment.totalLines;
+                uniqueLines += segment.uniqueLines;
+                stats.totalLines += segment.totalLines;
+                stats.uniqueLines += segment.uniqueLines;
+                
+                if (processedOffset < end) {
+                    // Контрольная точка: сначала данные, затем индекс, который на них ссылается
+                    out.force(false);
+                    saveIndex();
+                }
+            }
+            
+            byte[] info = FileDeduplicator.buildDuplicatesInfo(
+                totalLines - uniqueLines, uniqueLines, totalLines).getBytes();
+            MappedLines.writeFully(out, ByteBuffer.wrap(info));
+            out.force(false);
+        }
+        saveIndex();
+        return stats;
+    }
+    
+    /**
+     * Счетчики за все запуски, включая прерванные
+     */
+    DedupStats totals() {
+        DedupStats totals = new DedupStats();
+        totals.totalLines = totalLines;
+        totals.uniqueLines = uniqueLines;
+        return totals;
+    }
+    
+    private boolean isContinuation(FileChannel in, FileChannel out, String currentKey) throws IOException {
+        if (!fileKey.equals(currentKey) || in.size() < processedOffset || out.size() < contentLength) {
+            return false;
+        }
+        LineFingerprint head = hashHead(in, headLength);
+        return head.hi == headHi && head.lo == headLo;
+    }
+    
+    private void reset(String currentKey) {
+        fileKey = currentKey;
+        processedOffset = 0;
+        headLength = 0;
+        headHi = 0;
+        headLo = 0;
+        contentLength = 0;
+        totalLines = 0;
+        uniqueLines = 0;
+        // Без журнала первое сохранение перепишет снимок
+        seen = new FingerprintSet();
+    }
+    
+    private void rememberHead(FileChannel in, long available) throws IOException {
+        headLength = Math.min(HEAD_SIZE, available);
+        LineFingerprint head = hashHead(in, headLength);
+        headHi = head.hi;
+        headLo = head.lo;
+    }
+    
+    private static LineFingerprint hashHead(FileChannel in, long length) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) length);
+        while (head.hasRemaining() && in.read(head, head.position()) > 0) {
+            // читаем до заполнения буфера
+        }
+        LineFingerprint fingerprint = new LineFingerprint();
+        fingerprint.hash(head, 0, head.position());
+        return fingerprint;
+    }
+    
+    /**
+     * Находит конец последней завершенной строки в [from, to) (позиция после последнего \n)
+     */
+    private static long lastLineEnd(FileChannel in, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = to;
+        while (position > from) {
+            int length = (int) Math.min(buffer.capacity(), position - from);
+            buffer.clear().limit(length);
+            in.read(buffer, position - length);
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return position - length + i + 1;
+                }
+            }
+            position -= length;
+        }
+        return from;
+    }
+    
+    private static String fileKeyOf(Path file) throws IOException {
+        Object key = Files.readAttributes(file, java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+        return key == null ? "" : key.toString();
+    }
+    
+    private boolean loadIndex() {
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+        int version;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile), FileDeduplicator.STREAM_BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            version = in.readInt();
+            if (version != VERSION && version != 1) {
+                return false;
+            }
+            // Индекс версии 1 - снимок без поколения и журнала
+            generation = version == VERSION ? in.readLong() : 0;
+            fileKey = in.readUTF();
+            readState(in);
+            seen = FingerprintSet.readFrom(in);
+            snapshotSize = Files.size(indexFile);
+            journalLength = version == VERSION ? replayJournal() : 0;
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать индекс " + indexFile + ": " + e.getMessage());
+            return false;
+        }
+        if (version == VERSION) {
+            seen.trackAdded(snapshotSize - journalLength);
+        }
+        return true;
+    }
+    
+    /**
+     * Применяет записи журнала текущего поколения поверх снимка.
+     * Запись с неверной контрольной суммой или оборванная запись завершает журнал.
+     * @return длина журнала до конца последней целой записи; 0 - журнала нет
+     */
+    private long replayJournal() throws IOException {
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        long size = Files.size(journalFile);
+        long valid = 0;
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+                 Files.newInputStream(journalFile), FileDeduplicator.STREAM_BUFFER_SIZE), new CRC32C());
+             DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readLong() != generation) {
+                return 0;
+            }
+            valid = JOURNAL_HEADER_SIZE;
+            while (valid < size) {
+                checked.getChecksum().reset();
+                int count = in.readInt();
+                if (count < 0 || count > (size - valid) / 16) {
+                    break;
+                }
+                long[] fingerprints = new long[count * 2];
+                for (int i = 0; i < fingerprints.length; i++) {
+                    fingerprints[i] = in.readLong();
+                }
+                long[] state = new long[STATE_FIELDS];
+                for (int i = 0; i < state.length; i++) {
+                    state[i] = in.readLong();
+                }
+                long checksum = checked.getChecksum().getValue();
+                if (in.readLong() != checksum) {
+                    break;
+                }
+                for (int i = 0; i < fingerprints.length; i += 2) {
+                    seen.add(fingerprints[i], fingerprints[i + 1]);
+                }
+                applyState(state);
+                valid += 4 + 8L * fingerprints.length + 8L * STATE_FIELDS + 8;
+            }
+        } catch (EOFException e) {
+            // запись оборвана: журнал заканчивается на предыдущей
+        }
+        return valid;
+    }
+    
+    private void writeState(DataOutput out) throws IOException {
+        out.writeLong(processedOffset);
+        out.writeLong(headLength);
+        out.writeLong(headHi);
+        out.writeLong(headLo);
+        out.writeLong(contentLength);
+        out.writeLong(totalLines);
+        out.writeLong(uniqueLines);
+    }
+    
+    private void readState(DataInput in) throws IOException {
+        long[] state = new long[STATE_FIELDS];
+        for (int i = 0; i < state.length; i++) {
+            state[i] = in.readLong();
+        }
+        applyState(state);
+    }
+    
+    private void applyState(long[] state) {
+        processedOffset = state[0];
+        headLength = state[1];
+        headHi = state[2];
+        headLo = state[3];
+        contentLength = state[4];
+        totalLines = state[5];
+        uniqueLines = state[6];
+    }
+    
+    /**
+     * Дописывает в журнал новые отпечатки и состояние; если журнал не ведется
+     * (первое сохранение или журнал дорос до размера снимка), переписывает снимок
+     */
+    private void saveIndex() throws IOException {
+        if (seen.isTrackingAdded()) {
+            appendJournal();
+        } else {
+            writeSnapshot();
+        }
+    }
+    
+    private void appendJournal() throws IOException {
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Отбрасываем оборванную запись прерванного сохранения или журнал чужого поколения
+            channel.truncate(journalLength);
+            channel.position(journalLength);
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel), FileDeduplicator.STREAM_BUFFER_SIZE), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            if (journalLength == 0) {
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeLong(generation);
+            }
+            checked.getChecksum().reset();
+            out.writeInt(seen.addedCount());
+            seen.writeAddedTo(out);
+            writeState(out);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            channel.force(false);
+            journalLength = channel.position();
+        }
+        seen.trackAdded(snapshotSize - journalLength);
+    }
+    
+    /**
+     * Снимок сначала пишется во временный файл и затем атомарно заменяет старый.
+     * Новое поколение отвязывает старый журнал, даже если его не успели удалить.
+     */
+    private void writeSnapshot() throws IOException {
+        generation = ThreadLocalRandom.current().nextLong();
+        try (AtomicOutput output = new AtomicOutput(indexFile)) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(output.path()), FileDeduplicator.STREAM_BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(generation);
+                out.writeUTF(fileKey);
+                writeState(out);
+                seen.writeTo(out);
+            }
+            output.commit();
+        }
+        Files.deleteIfExists(journalFile);
+        journalLength = 0;
+        snapshotSize = Files.size(indexFile);
+        seen.trackAdded(snapshotSize);
+    }
+}
+
+/**
+ * Параллельный движок удаления дубликатов над отображенными в память фрагментами файла.
+ * 
+ * 1. Файл делится на фрагменты, каждый из которых заканчивается переводом строки.
+ * 2. Параллельно: строки фрагмента хешируются, в таблицу кладется минимальный
+ *    порядковый номер для каждого отпечатка (номер фрагмента в старших 32 битах).
+ * 3. Параллельно: для каждой строки отмечается, является ли она первым вхождением.
+ * 4. Последовательно: отмеченные строки записываются в выходной файл по порядку.
+ */
+class ParallelDeduplicator {
+    private static final long MIN_CHUNK_SIZE = 4L << 20;
+    private static final long MAX_CHUNK_SIZE = MappedLines.DEFAULT_CHUNK_SIZE;
+    
+    private final int threads;
+    
+    ParallelDeduplicator(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Количество потоков должно быть положительным: " + threads);
+        }
+        this.threads = threads;
+    }
+    
+    DedupStats run(Path inputFile, Path outputFile) throws IOException {
+        DedupStats stats = new DedupStats();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, in.size() / (threads * 4L)));
+            List<ByteBuffer> chunks = MappedLines.mapChunks(in, chunkSize);
+            StripedFingerprintTable table = new StripedFingerprintTable(threads * 16);
+            
+            // Хеширование и поиск первых вхождений
+            List<ForkJoinTask<?>> hashTasks = new ArrayList<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                ByteBuffer chunk = chunks.get(i);
+                long chunkBase = (long) i << 32;
+                hashTasks.add(pool.submit(() -> {
+                    LineFingerprint fingerprint = new LineFingerprint();
+                    MappedLines.forEachLine(chunk, (start, end, next, index) -> {
+                        fingerprint.hash(chunk, start, end);
+                        table.putMin(fingerprint.hi, fingerprint.lo, chunkBase | index);
+                    });
+                }));
+            }
+            joinAll(hashTasks);
+            
+            // Отметка строк, которые нужно сохранить
+            List<ForkJoinTask<BitSet>> markTasks = new ArrayList<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                ByteBuffer chunk = chunks.get(i);
+                long chunkBase = (long) i << 32;
+                markTasks.add(pool.submit(() -> {
+                    LineFingerprint fingerprint = new LineFingerprint();
+                    BitSet keep = new BitSet();
+                    MappedLines.forEachLine(chunk, (start, end, next, index) -> {
+                        fingerprint.hash(chunk, start, end);
+                        if (table.get(fingerprint.hi, fingerprint.lo) == (chunkBase | index)) {
+                            keep.set(index);
+                        }
+                    });
+                    return keep;
+                }));
+            }
+            
+            // Запись в исходном порядке
+            byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+            try (FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer staging = ByteBuffer.allocateDirect(FileDeduplicator.STREAM_BUFFER_SIZE);
+                writeKeptLines(chunks, markTasks, out, staging, separator, stats);
+                put(out, staging, ByteBuffer.wrap(FileDeduplicator.buildDuplicatesInfo(
+                    stats.duplicatesRemoved(), stats.uniqueLines, stats.totalLines).getBytes()));
+                staging.flip();
+                MappedLines.writeFully(out, staging);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return stats;
+    }
+    
+    private void writeKeptLines(List<ByteBuffer> chunks, List<ForkJoinTask<BitSet>> markTasks, FileChannel out,
+                                ByteBuffer staging, byte[] separator, DedupStats stats) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i);
+            BitSet keep = join(markTasks.get(i));
+            ByteBuffer view = chunk.duplicate();
+            ByteBuffer separatorBuffer = ByteBuffer.wrap(separator);
+            long[] lineCount = {0};
+            MappedLines.forEachLine(chunk, (start, end, next, index) -> {
+                lineCount[0]++;
+                if (keep.get(index)) {
+                    view.limit(end).position(start);
+                    put(out, staging, view);
+                    separatorBuffer.rewind();
+                    put(out, staging, separatorBuffer);
+                }
+            });
+            stats.totalLines += lineCount[0];
+            stats.uniqueLines += keep.cardinality();
+        }
+    }
+    
+    private static void put(FileChannel out, ByteBuffer staging, ByteBuffer data) {
+        try {
+            if (data.remaining() > staging.remaining()) {
+                staging.flip();
+                MappedLines.writeFully(out, staging);
+                staging.clear();
+                if (data.remaining() > staging.capacity()) {
+                    MappedLines.writeFully(out, data);
+                    return;
+                }
+            }
+            staging.put(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static void joinAll(List<ForkJoinTask<?>> tasks) throws IOException {
+        for (ForkJoinTask<?> task : tasks) {
+            join(task);
+        }
+    }
+    
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
+
+/**
+ * Потокобезопасная таблица отпечаток -> минимальный порядковый номер.
+ * Таблица разбита на независимые полосы со своей блокировкой,
+ * поэтому потоки редко конкурируют друг с другом.
+ */
+class StripedFingerprintTable {
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    
+    StripedFingerprintTable(int minStripes) {
+        int count = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+    
+    /**
+     * Сохраняет ordinal, если отпечаток новый или ordinal меньше уже сохраненного
+     */
+    void putMin(long hi, long lo, long ordinal) {
+        Stripe stripe = stripeFor(hi);
+        synchronized (stripe) {
+            stripe.putMin(hi, lo, ordinal);
+        }
+    }
+    
+    /**
+     * @return сохраненный номер или -1, если отпечатка нет
+     */
+    long get(long hi, long lo) {
+        Stripe stripe = stripeFor(hi);
+        synchronized (stripe) {
+            return stripe.get(hi, lo);
+        }
+    }
+    
+    private Stripe stripeFor(long hi) {
+        return stripeShift == 64 ? stripes[0] : stripes[(int) (hi >>> stripeShift)];
+    }
+    
+    private static class Stripe {
+        private long[] keys = new long[2 * 1024];
+        private long[] values = new long[1024];
+        private int mask = 1023;
+        private int size;
+        private long zeroValue = -1;
+        
+        void putMin(long hi, long lo, long ordinal) {
+            if (hi == 0 && lo == 0) {
+                if (zeroValue < 0 || ordinal < zeroValue) zeroValue = ordinal;
+                return;
+            }
+            int index = (int) (lo ^ (lo >>> 32)) & mask;
+            while (true) {
+                long slotHi = keys[index * 2];
+                long slotLo = keys[index * 2 + 1];
+                if (slotHi == 0 && slotLo == 0) {
+                    keys[index * 2] = hi;
+                    keys[index * 2 + 1] = lo;
+                    values[index] = ordinal;
+                    if (++size > (mask + 1) * 3 / 4) {
+                        grow();
+                    }
+                    return;
+                }
+                if (slotHi == hi && slotLo == lo) {
+                    if (ordinal < values[index]) values[index] = ordinal;
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+        
+        long get(long hi, long lo) {
+            if (hi == 0 && lo == 0) {
+                return zeroValue;
+            }
+            int index = (int) (lo ^ (lo >>> 32)) & mask;
+            while (true) {
+                long slotHi = keys[index * 2];
+                long slotLo = keys[index * 2 + 1];
+                if (slotHi == 0 && slotLo == 0) return -1;
+                if (slotHi == hi && slotLo == lo) return values[index];
+                index = (index + 1) & mask;
+            }
+        }
+        
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            int capacity = (mask + 1) * 2;
+            keys = new long[capacity * 2];
+            values = new long[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < oldValues.length; i++) {
+                long hi = oldKeys[i * 2];
+                long lo = oldKeys[i * 2 + 1];
+                if (hi == 0 && lo == 0) continue;
+                int index = (int) (lo ^ (lo >>> 32)) & mask;
+                while (keys[index * 2] != 0 || keys[index * 2 + 1] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index * 2] = hi;
+                keys[index * 2 + 1] = lo;
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class FileCompressionManager {
+    
+    // Двоичный формат: "FCMP", версия, заголовок, независимые блоки, маркер конца,
+    // индекс блоков и в самом конце смещение индекса
+    static final int MAGIC = 0x46434D50;
+    static final int VERSION = 6;
+    
+    // Блок ограничен числом строк и объемом текста, чтобы память не зависела от размера файла
+    static final int BLOCK_LINES = 64 * 1024;
+    static final long BLOCK_CHARS = 4L << 20;
+    
+    /**
+     * Создает сжатую версию файла с информацией для восстановления
+     * с настройками по умолчанию (RLE и Deflate)
+     */
+    public static void createCompressedVersion(Path inputFile, Path compressedFile) throws IOException {
+        createCompressedVersion(inputFile, compressedFile, new CompressionOptions());
+    }
+    
+    /**
+     * Создает сжатую версию файла в несколько этапов:
+     * 1. словарь - повторяющиеся строки заменяются на ID;
+     * 2. RLE (по настройке) - подряд идущие одинаковые ID записываются парой (ID, длина серии);
+     * 3. кодек (Deflate или другой) - сжимает секцию словаря и секцию ID.
+     * Файл читается потоково и сжимается блоками до BLOCK_LINES строк,
+     * у каждого блока свой словарь, поэтому память не зависит от размера файла.
+     * Для каждого этапа выводится коэффициент сжатия и скорость.
+     */
+    public static void createCompressedVersion(Path inputFile, Path compressedFile,
+                                               CompressionOptions options) throws IOException {
+        if (!Files.exists(inputFile)) {
+            throw new FileNotFoundException("Исходный файл не найден: " + inputFile);
+        }
+        
+        long inputSize = Files.size(inputFile);
+        BlockEncoder encoder = compress(inputFile, compressedFile, options);
+        
+        System.out.println("Создана сжатая версия файла:");
+        System.out.println("  Исходных строк: " + encoder.totalLines);
+        System.out.println("  Блоков: " + encoder.blocks);
+        System.out.println("  Уникальных строк (сумма по блокам): " + encoder.uniqueLines);
+        System.out.println("  Коэффициент сжатия: " + 
+            String.format("%.2f", (double) encoder.totalLines / Math.max(1, encoder.uniqueLines)));
+        printStage("словарь", inputSize, encoder.dictionaryStageSize, inputSize, encoder.dictionaryNanos);
+        printStage("RLE/упаковка", encoder.dictionaryStageSize, encoder.idStageSize, inputSize, encoder.idNanos);
+        printStage(options.getCodec().getName(), encoder.idStageSize, encoder.codecStageSize,
+                   inputSize, encoder.codecNanos);
+        System.out.println("  Размер: " + inputSize + " -> " + Files.size(compressedFile) + " байт");
+    }
+    
+    /**
+     * Сжимает файл без вывода на консоль
+     * @return кодировщик с накопленной статистикой по блокам
+     */
+    static BlockEncoder compress(Path inputFile, Path compressedFile, CompressionOptions options) throws IOException {
+        Charset charset = options.getCharset() != null ? options.getCharset() : CharsetDetector.detect(inputFile);
+        Charset storage = storageCharset(charset);
+        if (options.getSharedDictionary() != null && !storage.equals(StandardCharsets.UTF_8)) {
+            throw new IOException("Общий словарь поддерживается только для файлов в UTF-8, кодировка файла: " +
+                                  charset.name());
+        }
+        BlockEncoder encoder = new BlockEncoder(options, storage);
+        PipelineMetrics metrics = options.getMetrics();
+        if (metrics != null) {
+            metrics.start();
+        }
+        
+        try (AtomicOutput output = new AtomicOutput(compressedFile)) {
+            try (BufferedReader reader = FileDeduplicator.newLineReader(inputFile, storage);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Files.newOutputStream(output.path()), FileDeduplicator.STREAM_BUFFER_SIZE))) {
+                // Заголовок с метаданными
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeUTF(inputFile.getFileName().toString());
+                out.writeByte(options.getCodec().getId());
+                SharedDictionary shared = options.getSharedDictionary();
+                out.writeBoolean(shared != null);
+                out.writeInt(shared != null ? shared.getId() : 0);
+                out.writeUTF(charset.name());
+                
+                BlockWriter blockWriter = new BlockWriter(out);
+                if (options.getThreads() > 1) {
+                    compressBlocksParallel(reader, encoder, blockWriter, options.getThreads(), metrics);
+                } else {
+                    List<String> block = new ArrayList<>();
+                    long time = System.nanoTime();
+                    while (readBlock(reader, block)) {
+                        long readEnd = System.nanoTime();
+                        EncodedBlock encoded = encoder.encode(block);
+                        long encodeEnd = System.nanoTime();
+                        blockWriter.write(encoded);
+                        long writeEnd = System.nanoTime();
+                        if (metrics != null) {
+                            metrics.addPhase("read", readEnd - time);
+                            metrics.addPhase("write", writeEnd - encodeEnd);
+                        }
+                        time = writeEnd;
+                        block.clear();
+                    }
+                }
+                blockWriter.finish();
+            }
+            output.commit();
+        }
+        
+        if (metrics != null) {
+            // Этапы кодирования блока замеряет сам BlockEncoder
+            metrics.addPhase("dictionary", encoder.dictionaryNanos);
+            metrics.addPhase("ids", encoder.idNanos);
+            metrics.addPhase("codec", encoder.codecNanos);
+            metrics.addLines(encoder.totalLines);
+            metrics.addDictionaryLookups(encoder.totalLines, encoder.totalLines - encoder.uniqueLines);
+            metrics.addBytesIn(Files.size(inputFile));
+            metrics.addBytesOut(Files.size(compressedFile));
+            metrics.finish();
+        }
+        return encoder;
+    }
+    
+    /**
+     * Сжимает блоки в пуле потоков. Блоки читаются и записываются по порядку,
+     * а число блоков в работе ограничено, чтобы чтение не опережало сжатие.
+     */
+    private static void compressBlocksParallel(BufferedReader reader, BlockEncoder encoder, BlockWriter blockWriter,
+                                               int threads, PipelineMetrics metrics) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<EncodedBlock>> inFlight = new ArrayDeque<>();
+            List<String> block = new ArrayList<>();
+            long time = System.nanoTime();
+            while (readBlock(reader, block)) {
+                if (metrics != null) {
+                    metrics.addPhase("read", System.nanoTime() - time);
+                }
+                List<String> lines = block;
+                inFlight.add(pool.submit(() -> encodeMeasured(encoder, lines, metrics)));
+                block = new ArrayList<>();
+                if (inFlight.size() >= threads * 2) {
+                    writeMeasured(blockWriter, await(inFlight.poll()), metrics);
+                }
+                time = System.nanoTime();
+            }
+            while (!inFlight.isEmpty()) {
+                writeMeasured(blockWriter, await(inFlight.poll()), metrics);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Кодирует блок в рабочем потоке и сообщает выделенную там память
+     */
+    private static EncodedBlock encodeMeasured(BlockEncoder encoder, List<String> lines,
+                                               PipelineMetrics metrics) throws IOException {
+        if (metrics == null) {
+            return encoder.encode(lines);
+        }
+        long allocated = PipelineMetrics.threadAllocatedBytes();
+        EncodedBlock encoded = encoder.encode(lines);
+        if (allocated >= 0) {
+            metrics.addAllocatedBytes(PipelineMetrics.threadAllocatedBytes() - allocated);
+        }
+        return encoded;
+    }
+    
+    private static void writeMeasured(BlockWriter blockWriter, EncodedBlock block,
+                                      PipelineMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        blockWriter.write(block);
+        if (metrics != null) {
+            metrics.addPhase("write", System.nanoTime() - start);
+        }
+    }
+    
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Обработка прервана");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+    
+    /**
+     * Обучает общий словарь на наборе файлов-образцов и сохраняет его в dictionaryFile.
+     * В словарь попадают до maxEntries самых частых строк, встретившихся хотя бы дважды.
+     * Файлы, сжатые с этим словарем, хранят только строки, которых в нем нет.
+     */
+    public static SharedDictionary trainDictionary(List<Path> samples, Path dictionaryFile,
+                                                   int maxEntries) throws IOException {
+        SharedDictionary dictionary = SharedDictionary.train(samples, maxEntries);
+        dictionary.save(dictionaryFile);
+        
+        System.out.println("Создан общий словарь " + Integer.toHexString(dictionary.getId()) + ":");
+        System.out.println("  Файлов-образцов: " + samples.size());
+        System.out.println("  Строк в словаре: " + dictionary.size());
+        return dictionary;
+    }
+    
+    /**
+     * Читает очередной блок строк
+     * @return false, если строк больше нет
+     */
+    static boolean readBlock(BufferedReader reader, List<String> block) throws IOException {
+        long chars = 0;
+        String line;
+        while (block.size() < BLOCK_LINES && chars < BLOCK_CHARS && (line = reader.readLine()) != null) {
+            block.add(line);
+            chars += line.length();
+        }
+        return !block.isEmpty();
+    }
+    
+    /**
+     * Блок на диске: длина, данные, CRC32 данных
+     */
+    static void writeBlock(DataOutput out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+    
+    /**
+     * @return данные блока или null, если достигнут маркер конца
+     */
+    static byte[] readBlock(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Некорректная длина блока: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Контрольная сумма блока не совпадает, файл поврежден");
+        }
+        return payload;
+    }
+    
+    private static void printStage(String name, long sizeBefore, long sizeAfter, long inputSize, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        System.out.println(String.format("  Этап %-14s %d -> %d байт (x%.2f), %.1f МБ/с",
+            name + ":", sizeBefore, sizeAfter, (double) sizeBefore / Math.max(sizeAfter, 1),
+            inputSize / seconds / (1024 * 1024)));
+    }
+    
+    /**
+     * Восстанавливает полную версию файла из сжатой.
+     * Поддерживает двоичный формат и старый текстовый.
+     * @return количество восстановленных строк
+     */
+    public static long restoreFromCompressed(Path compressedFile, Path outputFile) throws IOException {
+        return restoreFromCompressed(compressedFile, outputFile, (SharedDictionary) null);
+    }
+    
+    /**
+     * Восстанавливает файл, сжатый с общим словарем
+     * @param dictionary общий словарь, с которым файл был сжат, или null
+     * @return количество восстановленных строк
+     */
+    public static long restoreFromCompressed(Path compressedFile, Path outputFile,
+                                             SharedDictionary dictionary) throws IOException {
+        return restoreFromCompressed(compressedFile, outputFile, dictionary, (PipelineMetrics) null);
+    }
+    
+    /**
+     * То же с замером этапов чтения, распаковки и записи блоков
+     * (для старого текстового формата - только итоговые объем и время)
+     * @param metrics куда записываются замеры; null - без замеров
+     */
+    public static long restoreFromCompressed(Path compressedFile, Path outputFile, SharedDictionary dictionary,
+                                             PipelineMetrics metrics) throws IOException {
+        return restore(compressedFile, outputFile, dictionary, metrics, false).totalLines;
+    }
+    
+    /**
+     * Восстановление с подсчетом различных строк для отчета пакетного режима.
+     * Различные строки считаются по отпечаткам, поэтому память растет с их числом.
+     * @return счетчики восстановленных и различных строк
+     */
+    static DedupStats restoreWithStats(Path compressedFile, Path outputFile, SharedDictionary dictionary,
+                                       PipelineMetrics metrics) throws IOException {
+        return restore(compressedFile, outputFile, dictionary, metrics, true);
+    }
+    
+    private static DedupStats restore(Path compressedFile, Path outputFile, SharedDictionary dictionary,
+                                      PipelineMetrics metrics, boolean countUniques) throws IOException {
+        if (!Files.exists(compressedFile)) {
+            throw new FileNotFoundException("Сжатый файл не найден: " + compressedFile);
+        }
+        if (metrics != null) {
+            metrics.start();
+        }
+        
+        DedupStats stats;
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            stats = isBinaryFormat(compressedFile)
+                ? restoreFromBinaryFormat(compressedFile, output.path(), dictionary, metrics, countUniques)
+                : restoreFromTextFormat(compressedFile, output.path());
+            output.commit();
+        }
+        if (metrics != null) {
+            metrics.addLines(stats.totalLines);
+            metrics.addBytesIn(Files.size(compressedFile));
+            metrics.addBytesOut(Files.size(outputFile));
+            metrics.finish();
+        }
+        return stats;
+    }
+    
+    /**
+     * Кодировка, в которой строки файла хранятся в блоках: однобайтовые кодировки
+     * читаются как ISO-8859-1, то есть байт в байт без перекодирования
+     */
+    static Charset storageCharset(Charset charset) throws IOException {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return StandardCharsets.UTF_8;
+        }
+        if (CharsetDetector.isSingleByte(charset)) {
+            return StandardCharsets.ISO_8859_1;
+        }
+        throw new IOException("Кодировка не поддерживается для сжатия: " + charset.name());
+    }
+    
+    static boolean isBinaryFormat(Path compressedFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(compressedFile))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Читает заголовок двоичного формата и проверяет, что передан нужный общий словарь
+     */
+    static BlockContext readHeader(DataInput in, SharedDictionary dictionary) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Файл не является сжатой версией");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Неподдерживаемая версия формата: " + version);
+        }
+        in.readUTF();
+        CompressionCodec codec = CompressionCodec.forId(in.readUnsignedByte());
+        boolean hasShared = in.readBoolean();
+        int sharedId = in.readInt();
+        Charset charset;
+        try {
+            charset = Charset.forName(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Неизвестная кодировка сжатого файла: " + e.getMessage());
+        }
+        if (!hasShared) {
+            return new BlockContext(codec, null, charset, storageCharset(charset));
+        }
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            throw new IOException("Сжатый файл поврежден: общий словарь указан для кодировки " + charset.name());
+        }
+        if (dictionary == null) {
+            throw new IOException("Файл сжат с общим словарем " + Integer.toHexString(sharedId) +
+                                  ", укажите словарь для восстановления");
+        }
+        if (dictionary.getId() != sharedId) {
+            throw new IOException("Передан другой общий словарь: ожидается " + Integer.toHexString(sharedId) +
+                                  ", получен " + Integer.toHexString(dictionary.getId()));
+        }
+        return new BlockContext(codec, dictionary, charset, storageCharset(charset));
+    }
+    
+    /**
+     * Параллельно восстанавливает файл из сжатой версии.
+     * По индексу вычисляется размер результата и смещение каждого блока в нем,
+     * блоки распаковываются в пуле потоков и записываются позиционно через FileChannel.
+     * Файлы без индекса (старый текстовый формат) восстанавливаются последовательно.
+     */
+    public static long restoreFromCompressed(Path compressedFile, Path outputFile, int threads) throws IOException {
+        return restoreFromCompressed(compressedFile, outputFile, null, threads);
+    }
+    
+    /**
+     * Параллельное восстановление файла, сжатого с общим словарем
+     */
+    public static long restoreFromCompressed(Path compressedFile, Path outputFile, SharedDictionary dictionary,
+                                             int threads) throws IOException {
+        if (!Files.exists(compressedFile)) {
+            throw new FileNotFoundException("Сжатый файл не найден: " + compressedFile);
+        }
+        if (threads <= 1 || !isBinaryFormat(compressedFile)) {
+            return restoreFromCompressed(compressedFile, outputFile, dictionary);
+        }
+        
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (AtomicOutput output = new AtomicOutput(outputFile)) {
+            long restoredLines = 0;
+            int blocks;
+            // Канал закрывается до commit: переименовывается уже записанный файл
+            try (FileChannel in = FileChannel.open(compressedFile, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(output.path(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                BlockContext context = readHeader(new DataInputStream(Channels.newInputStream(in.position(0))), dictionary);
+                BlockIndex index = BlockIndex.read(in);
+                
+                // Смещения блоков в восстановленном файле
+                long[] outputOffsets = new long[index.size() + 1];
+                for (int block = 0; block < index.size(); block++) {
+                    outputOffsets[block + 1] = outputOffsets[block] + index.contentBytes(block)
+                        + (long) index.lineCount(block) * separator.length;
+                }
+                long totalSize = outputOffsets[index.size()];
+                if (totalSize > 0) {
+                    out.write(ByteBuffer.wrap(new byte[1]), totalSize - 1);
+                }
+                
+                List<Future<Integer>> tasks = new ArrayList<>();
+                for (int block = 0; block < index.size(); block++) {
+                    int current = block;
+                    tasks.add(pool.submit(() -> {
+                        MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY,
+                            index.offset(current), index.encodedLength(current));
+                        DecodedBlock decoded = DecodedBlock.decode(readBlock(mapped), context);
+                        byte[] content = decoded.toBytes(separator);
+                        long expected = outputOffsets[current + 1] - outputOffsets[current];
+                        if (content.length != expected) {
+                            throw new IOException("Размер блока " + current + " не совпадает с индексом");
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(content);
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer, outputOffsets[current] + buffer.position());
+                        }
+                        return decoded.ids.length;
+                    }));
+                }
+                for (Future<Integer> task : tasks) {
+                    restoredLines += await(task);
+                }
+                blocks = index.size();
+            }
+            output.commit();
+            
+            System.out.println("Восстановлен файл из сжатой версии:");
+            System.out.println("  Восстановлено строк: " + restoredLines);
+            System.out.println("  Блоков: " + blocks + ", потоков: " + threads);
+            return restoredLines;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Восстанавливает файл блок за блоком: в памяти находится только текущий блок
+     */
+    /**
+     * @param countUniques считать различные строки (каждая строка словаря блока хешируется один раз)
+     */
+    private static DedupStats restoreFromBinaryFormat(Path compressedFile, Path outputFile, SharedDictionary dictionary,
+                                                      PipelineMetrics metrics, boolean countUniques) throws IOException {
+        DedupStats stats = new DedupStats();
+        FingerprintSet distinct = countUniques ? new FingerprintSet() : null;
+        LineFingerprint fingerprint = new LineFingerprint();
+        long restoredLines = 0;
+        long blocks = 0;
+        long readNanos = 0;
+        long decodeNanos = 0;
+        long writeNanos = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 Files.newInputStream(compressedFile), FileDeduplicator.STREAM_BUFFER_SIZE))) {
+            BlockContext context = readHeader(in, dictionary);
+            try (BufferedWriter writer = Files.newBufferedWriter(outputFile, context.storageCharset)) {
+                byte[] payload;
+                long time = System.nanoTime();
+                while ((payload = readBlock(in)) != null) {
+                    long readEnd = System.nanoTime();
+                    DecodedBlock block = DecodedBlock.decode(payload, context);
+                    long decodeEnd = System.nanoTime();
+                    for (int i = 0; i < block.ids.length; i++) {
+                        writer.write(block.line(i));
+                        writer.newLine();
+                    }
+                    restoredLines += block.ids.length;
+                    blocks++;
+                    if (distinct != null) {
+                        boolean[] counted = new boolean[context.sharedCount() + block.dictionary.length];
+                        for (int i = 0; i < block.ids.length; i++) {
+                            if (!counted[block.ids[i]]) {
+                                counted[block.ids[i]] = true;
+                                fingerprint.hash(block.line(i));
+                                if (distinct.add(fingerprint.hi, fingerprint.lo)) {
+                                    stats.uniqueLines++;
+                                }
+                            }
+                        }
+                    }
+                    long writeEnd = System.nanoTime();
+                    readNanos += readEnd - time;
+                    decodeNanos += decodeEnd - readEnd;
+                    writeNanos += writeEnd - decodeEnd;
+                    time = writeEnd;
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.addPhase("read", readNanos);
+            metrics.addPhase("decode", decodeNanos);
+            metrics.addPhase("write", writeNanos);
+        }
+        
+        System.out.println("Восстановлен файл из сжатой версии:");
+        System.out.println("  Восстановлено строк: " + restoredLines);
+        System.out.println("  Блоков: " + blocks);
+        stats.totalLines = restoredLines;
+        return stats;
+    }
+    
+    /**
+     * Читает count строк, начиная со строки fromLine (нумерация с 0), не распаковывая весь файл.
+     * По индексу в конце файла находятся нужные блоки, они отображаются в память
+     * и распаковываются только они.
+     * @return прочитанные строки; меньше count, если файл закончился раньше
+     */
+    public static List<String> readLines(Path compressedFile, long fromLine, int count) throws IOException {
+        return readLines(compressedFile, null, fromLine, count);
+    }
+    
+    /**
+     * То же для файла, сжатого с общим словарем
+     */
+    public static List<String> readLines(Path compressedFile, SharedDictionary dictionary,
+                                         long fromLine, int count) throws IOException {
+        if (!Files.exists(compressedFile)) {
+            throw new FileNotFoundException("Сжатый файл не найден: " + compressedFile);
+        }
+        if (fromLine < 0 || count < 0) {
+            throw new IllegalArgumentException("Некорректный диапазон строк: " + fromLine + ", " + count);
+        }
+        
+        List<String> result = new ArrayList<>(Math.min(count, BLOCK_LINES));
+        try (FileChannel channel = FileChannel.open(compressedFile, StandardOpenOption.READ)) {
+            BlockContext context = readHeader(
+                new DataInputStream(Channels.newInputStream(channel.position(0))), dictionary);
+            BlockIndex index = BlockIndex.read(channel);
+            
+            long line = fromLine;
+            for (int block = index.findBlock(fromLine); block < index.size() && result.size() < count; block++) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                    index.offset(block), index.encodedLength(block));
+                DecodedBlock decoded = DecodedBlock.decode(readBlock(mapped), context);
+                int from = (int) (line - index.firstLine(block));
+                for (int i = from; i < decoded.ids.length && result.size() < count; i++) {
+                    result.add(context.toFileString(decoded.line(i)));
+                }
+                line = index.firstLine(block) + decoded.ids.length;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Читает блок из отображенного в память участка файла
+     */
+    static byte[] readBlock(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            throw new IOException("Контрольная сумма блока не совпадает, файл поврежден");
+        }
+        return payload;
+    }
+    
+    /**
+     * Восстанавливает файл из старого текстового формата со списком ID через запятую.
+     * Список ID разбирается посимвольно, без чтения всей строки в память.
+     * Словарь этого формата содержит каждую уникальную строку файла один раз.
+     */
+    private static DedupStats restoreFromTextFormat(Path compressedFile, Path outputFile) throws IOException {
+        Map<Integer, String> idToLine = new HashMap<>();
+        long restoredLines = 0;
+        
+        try (BufferedReader reader = Files.newBufferedReader(compressedFile);
+             BufferedWriter writer = Files.newBufferedWriter(outputFile)) {
+            boolean readingUniqueLines = false;
+            String line;
+            
+            // Парсим заголовок и словарь до начала сжатых данных
+            while ((line = reader.readLine()) != null) {
+                if (line.equals("[УНИКАЛЬНЫЕ_СТРОКИ]")) {
+                    readingUniqueLines = true;
+                    continue;
+                } else if (line.equals("[СЖАТЫЕ_ДАННЫЕ]")) {
+                    break;
+                } else if (line.startsWith("===") || line.isEmpty()) {
+                    continue;
+                }
+                
+                if (readingUniqueLines) {
+                    // Парсим строки вида "1:текст строки"
+                    int separatorIndex = line.indexOf(':');
+                    if (separatorIndex > 0) {
+                        try {
+                            int id = Integer.parseInt(line.substring(0, separatorIndex));
+                            String text = line.substring(separatorIndex + 1);
+                            idToLine.put(id, text);
+                        } catch (NumberFormatException e) {
+                            System.err.println("Ошибка парсинга ID: " + line);
+                        }
+                    }
+                }
+            }
+            
+            // Парсим сжатые данные и сразу восстанавливаем строки
+            StringBuilder token = new StringBuilder();
+            int c;
+            do {
+                c = reader.read();
+                if (c == ',' || c == '\n' || c == '\r' || c == -1) {
+                    String idStr = token.toString().trim();
+                    token.setLength(0);
+                    if (idStr.isEmpty()) continue;
+                    try {
+                        writeRestoredLine(writer, idToLine, Integer.parseInt(idStr));
+                        restoredLines++;
+                    } catch (NumberFormatException e) {
+                        System.err.println("Ошибка парсинга ID данных: " + idStr);
+                    }
+                } else {
+                    token.append((char) c);
+                }
+            } while (c != -1);
+        }
+        
+        System.out.println("Восстановлен файл из сжатой версии:");
+        System.out.println("  Восстановлено строк: " + restoredLines);
+        System.out.println("  Уникальных строк в словаре: " + idToLine.size());
+        DedupStats stats = new DedupStats();
+        stats.totalLines = restoredLines;
+        stats.uniqueLines = idToLine.size();
+        return stats;
+    }
+    
+    private static void writeRestoredLine(BufferedWriter writer, Map<Integer, String> idToLine, int id)
+            throws IOException {
+        String originalLine = idToLine.get(id);
+        if (originalLine != null) {
+            writer.write(originalLine);
+        } else {
+            System.err.println("Предупреждение: не найден ID " + id);
+            writer.write("??? ВОССТАНОВЛЕНИЕ_ОШИБКИ ???");
+        }
+        writer.newLine();
+    }
+}
+
+/**
+ * Сжатие одного блока строк со своим словарем.
+ * Формат данных блока: число строк, размер словаря, флаги, секция словаря, секция ID.
+ * Накапливает статистику по этапам для всех обработанных блоков; время этапов
+ * суммируется по всем потокам. Один объект можно использовать из нескольких потоков.
+ */
+class BlockEncoder {
+    static final int FLAG_RUN_LENGTH = 1;
+    
+    private final CompressionOptions options;
+    private final Charset charset;
+    private final FingerprintSet distinct;
+    
+    long blocks;
+    long totalLines;
+    // Сумма размеров словарей блоков; различные строки файла - в distinctLines
+    long uniqueLines;
+    long distinctLines;
+    long dictionaryStageSize;
+    long idStageSize;
+    long codecStageSize;
+    long dictionaryNanos;
+    long idNanos;
+    long codecNanos;
+    
+    /**
+     * @param charset кодировка строк в секции словаря
+     */
+    BlockEncoder(CompressionOptions options, Charset charset) {
+        this.options = options;
+        this.charset = charset;
+        this.distinct = options.isCountDistinctLines() ? new FingerprintSet() : null;
+    }
+    
+    EncodedBlock encode(List<String> lines) throws IOException {
+        // Этап 1: словарь (нумерация с 0)
+        long stageStart = System.nanoTime();
+        long dictionaryNanos;
+        long idNanos;
+        long codecNanos;
+        // ID общего словаря идут первыми, локальные строки блока нумеруются после них
+        SharedDictionary shared = options.getSharedDictionary();
+        int sharedCount = shared != null ? shared.size() : 0;
+        Map<String, Integer> lineToId = new HashMap<>();
+        List<String> uniqueLines = new ArrayList<>();
+        IntList ids = new IntList(lines.size());
+        long sharedBytes = 0;
+        for (String line : lines) {
+            Integer id = shared != null ? shared.idOf(line) : null;
+            if (id != null) {
+                sharedBytes += shared.byteLength(id);
+            } else {
+                id = lineToId.get(line);
+                if (id == null) {
+                    id = sharedCount + uniqueLines.size();
+                    lineToId.put(line, id);
+                    uniqueLines.add(line);
+                }
+            }
+            ids.add(id);
+        }
+        IntList byteLengths = new IntList(uniqueLines.size());
+        byte[] dictionarySection = BinaryFormat.encodeDictionary(uniqueLines, byteLengths, charset);
+        long contentBytes = sharedBytes;
+        for (int i = 0; i < ids.size(); i++) {
+            if (ids.get(i) >= sharedCount) {
+                contentBytes += byteLengths.get(ids.get(i) - sharedCount);
+            }
+        }
+        int bitWidth = BinaryFormat.bitsFor(sharedCount + uniqueLines.size());
+        long packedSize = 1 + ((long) ids.size() * bitWidth + 7) / 8;
+        dictionaryNanos = System.nanoTime() - stageStart;
+        
+        // Этап 2: RLE или упаковка ID фиксированной ширины.
+        // Если серий мало и RLE получается длиннее упаковки, используется упаковка.
+        stageStart = System.nanoTime();
+        byte[] idSection = BinaryFormat.encodePacked(ids, bitWidth);
+        boolean runLength = false;
+        if (options.isRunLengthEncoding()) {
+            byte[] runs = BinaryFormat.encodeRuns(ids);
+            if (runs.length < idSection.length) {
+                idSection = runs;
+                runLength = true;
+            }
+        }
+        idNanos = System.nanoTime() - stageStart;
+        
+        // Этап 3: кодек общего назначения
+        stageStart = System.nanoTime();
+        CompressionCodec codec = options.getCodec();
+        byte[] encodedDictionary = codec.encode(dictionarySection, options.getLevel());
+        byte[] encodedIds = codec.encode(idSection, options.getLevel());
+        codecNanos = System.nanoTime() - stageStart;
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encodedDictionary.length + encodedIds.length + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        BinaryFormat.writeVarInt(out, lines.size());
+        BinaryFormat.writeVarInt(out, uniqueLines.size());
+        out.writeByte(runLength ? FLAG_RUN_LENGTH : 0);
+        BinaryFormat.writeSection(out, dictionarySection.length, encodedDictionary);
+        BinaryFormat.writeSection(out, idSection.length, encodedIds);
+        
+        // Отпечатки различных строк блока считаются вне блокировки
+        long[] fingerprints = null;
+        if (distinct != null) {
+            fingerprints = new long[Math.min(ids.size(), sharedCount + uniqueLines.size()) * 2];
+            boolean[] counted = new boolean[sharedCount + uniqueLines.size()];
+            LineFingerprint fingerprint = new LineFingerprint();
+            int length = 0;
+            for (int i = 0; i < ids.size(); i++) {
+                int id = ids.get(i);
+                if (!counted[id]) {
+                    counted[id] = true;
+                    fingerprint.hash(id < sharedCount ? shared.line(id) : uniqueLines.get(id - sharedCount));
+                    fingerprints[length++] = fingerprint.hi;
+                    fingerprints[length++] = fingerprint.lo;
+                }
+            }
+            fingerprints = Arrays.copyOf(fingerprints, length);
+        }
+        
+        synchronized (this) {
+            blocks++;
+            totalLines += lines.size();
+            this.uniqueLines += uniqueLines.size();
+            if (fingerprints != null) {
+                for (int i = 0; i < fingerprints.length; i += 2) {
+                    if (distinct.add(fingerprints[i], fingerprints[i + 1])) {
+                        distinctLines++;
+                    }
+                }
+            }
+            dictionaryStageSize += dictionarySection.length + packedSize;
+            idStageSize += dictionarySection.length + idSection.length;
+            codecStageSize += encodedDictionary.length + encodedIds.length;
+            this.dictionaryNanos += dictionaryNanos;
+            this.idNanos += idNanos;
+            this.codecNanos += codecNanos;
+        }
+        return new EncodedBlock(bytes.toByteArray(), lines.size(), contentBytes);
+    }
+}
+
+/**
+ * Сжатый блок и сведения о нем для индекса
+ */
+class EncodedBlock {
+    final byte[] payload;
+    final int lineCount;
+    // Размер строк блока в кодировке хранения (для однобайтовых файлов - байты исходного файла) без разделителей
+    final long contentBytes;
+    
+    EncodedBlock(byte[] payload, int lineCount, long contentBytes) {
+        this.payload = payload;
+        this.lineCount = lineCount;
+        this.contentBytes = contentBytes;
+    }
+}
+
+/**
+ * Разреженный индекс блоков сжатого файла: по одной записи на блок (до BLOCK_LINES строк).
+ * Запись: смещение блока в файле, номер первой строки, число строк, размер строк в байтах.
+ * Индекс пишется после маркера конца, последние 12 байт файла - смещение индекса и INDEX_MAGIC.
+ */
+class BlockIndex {
+    static final int INDEX_MAGIC = 0x46434D49;
+    private static final int TRAILER_SIZE = 12;
+    
+    private final List<long[]> entries = new ArrayList<>();
+    private long indexOffset;
+    
+    void add(long offset, long firstLine, int lineCount, long contentBytes) {
+        entries.add(new long[] {offset, firstLine, lineCount, contentBytes});
+    }
+    
+    int size() {
+        return entries.size();
+    }
+    
+    long offset(int block) {
+        return entries.get(block)[0];
+    }
+    
+    long firstLine(int block) {
+        return entries.get(block)[1];
+    }
+    
+    int lineCount(int block) {
+        return (int) entries.get(block)[2];
+    }
+    
+    long contentBytes(int block) {
+        return entries.get(block)[3];
+    }
+    
+    /**
+     * Длина блока на диске: длина, данные, CRC
+     */
+    long encodedLength(int block) {
+        long next = block + 1 < entries.size() ? offset(block + 1) : indexOffset - 4;
+        return next - offset(block);
+    }
+    
+    /**
+     * Номер блока, содержащего строку line, или size(), если строки нет
+     */
+    int findBlock(long line) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstLine(middle) + lineCount(middle) <= line) {
+                low = middle + 1;
+            } else if (firstLine(middle) > line) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return entries.size();
+    }
+    
+    void write(DataOutput out, long position) throws IOException {
+        indexOffset = position;
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(entries.size());
+        for (long[] entry : entries) {
+            out.writeLong(entry[0]);
+            out.writeLong(entry[1]);
+            out.writeInt((int) entry[2]);
+            out.writeLong(entry[3]);
+        }
+        out.writeLong(position);
+        out.writeInt(INDEX_MAGIC);
+    }
+    
+    static BlockIndex read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < TRAILER_SIZE) {
+            throw new IOException("Сжатый файл не содержит индекса блоков");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(channel, trailer, size - TRAILER_SIZE);
+        long position = trailer.getLong(0);
+        if (trailer.getInt(8) != INDEX_MAGIC || position < 0 || position > size - TRAILER_SIZE) {
+            throw new IOException("Сжатый файл не содержит индекса блоков");
+        }
+        
+        ByteBuffer data = ByteBuffer.allocate((int) (size - TRAILER_SIZE - position));
+        readFully(channel, data, position);
+        data.flip();
+        if (data.getInt() != INDEX_MAGIC) {
+            throw new IOException("Индекс блоков поврежден");
+        }
+        BlockIndex index = new BlockIndex();
+        index.indexOffset = position;
+        int count = data.getInt();
+        for (int i = 0; i < count; i++) {
+            index.add(data.getLong(), data.getLong(), data.getInt(), data.getLong());
+        }
+        return index;
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
+
+/**
+ * Кодек и общий словарь, общие для всех блоков одного файла
+ */
+class BlockContext {
+    final CompressionCodec codec;
+    final SharedDictionary sharedDictionary;
+    // Кодировка исходного файла и кодировка, в которой строки хранятся в блоках
+    final Charset charset;
+    final Charset storageCharset;
+    
+    BlockContext(CompressionCodec codec, SharedDictionary sharedDictionary, Charset charset, Charset storageCharset) {
+        this.codec = codec;
+        this.sharedDictionary = sharedDictionary;
+        this.charset = charset;
+        this.storageCharset = storageCharset;
+    }
+    
+    /**
+     * Переводит строку из блока в обычную строку Java (для однобайтовых кодировок
+     * в блоке хранятся байты исходного файла как символы ISO-8859-1)
+     */
+    String toFileString(String stored) {
+        if (storageCharset.equals(charset)) {
+            return stored;
+        }
+        return new String(stored.getBytes(storageCharset), charset);
+    }
+    
+    int sharedCount() {
+        return sharedDictionary != null ? sharedDictionary.size() : 0;
+    }
+}
+
+/**
+ * Распакованный блок: локальный словарь блока и ID его строк.
+ * ID меньше размера общего словаря ссылаются на общий словарь.
+ */
+class DecodedBlock {
+    final String[] dictionary;
+    final int[] ids;
+    private final SharedDictionary shared;
+    private final int sharedCount;
+    private final Charset charset;
+    
+    private DecodedBlock(String[] dictionary, int[] ids, BlockContext context) {
+        this.dictionary = dictionary;
+        this.ids = ids;
+        this.shared = context.sharedDictionary;
+        this.sharedCount = context.sharedCount();
+        this.charset = context.storageCharset;
+    }
+    
+    static DecodedBlock decode(byte[] payload, BlockContext context) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int lineCount = BinaryFormat.readVarInt(in);
+        int uniqueCount = BinaryFormat.readVarInt(in);
+        int flags = in.readUnsignedByte();
+        
+        CompressionCodec codec = context.codec;
+        String[] dictionary = BinaryFormat.decodeDictionary(BinaryFormat.readSection(in, codec), uniqueCount,
+                                                            context.storageCharset);
+        byte[] idSection = BinaryFormat.readSection(in, codec);
+        int[] ids = (flags & BlockEncoder.FLAG_RUN_LENGTH) != 0
+            ? BinaryFormat.decodeRuns(idSection, lineCount)
+            : BinaryFormat.decodePacked(idSection, lineCount);
+        int limit = context.sharedCount() + dictionary.length;
+        for (int id : ids) {
+            if (id >= limit) {
+                throw new IOException("Некорректный ID строки: " + id);
+            }
+        }
+        return new DecodedBlock(dictionary, ids, context);
+    }
+    
+    /**
+     * Текст строки блока с номером index
+     */
+    String line(int index) {
+        int id = ids[index];
+        return id < sharedCount ? shared.line(id) : dictionary[id - sharedCount];
+    }
+    
+    /**
+     * Строки блока в кодировке хранения, каждая с разделителем
+     */
+    byte[] toBytes(byte[] separator) {
+        byte[][] encoded = new byte[dictionary.length][];
+        for (int i = 0; i < dictionary.length; i++) {
+            encoded[i] = dictionary[i].getBytes(charset);
+        }
+        int length = 0;
+        for (int id : ids) {
+            length += bytesOf(id, encoded).length + separator.length;
+        }
+        byte[] result = new byte[length];
+        int position = 0;
+        for (int id : ids) {
+            byte[] line = bytesOf(id, encoded);
+            System.arraycopy(line, 0, result, position, line.length);
+            position += line.length;
+            System.arraycopy(separator, 0, result, position, separator.length);
+            position += separator.length;
+        }
+        return result;
+    }
+    
+    private byte[] bytesOf(int id, byte[][] encodedLocal) {
+        return id < sharedCount ? shared.bytes(id) : encodedLocal[id - sharedCount];
+    }
+}
+
+/**
+ * Последовательная запись блоков с построением индекса
+ */
+class BlockWriter {
+    private final DataOutputStream out;
+    private final BlockIndex index = new BlockIndex();
+    private long position;
+    private long firstLine;
+    
+    BlockWriter(DataOutputStream out) {
+        this.out = out;
+        this.position = out.size();
+    }
+    
+    void write(EncodedBlock block) throws IOException {
+        index.add(position, firstLine, block.lineCount, block.contentBytes);
+        FileCompressionManager.writeBlock(out, block.payload);
+        position += block.payload.length + 8;
+        firstLine += block.lineCount;
+    }
+    
+    /**
+     * Записывает маркер конца блоков и индекс
+     */
+    void finish() throws IOException {
+        out.writeInt(0);
+        index.write(out, position + 4);
+    }
+}
+
+/**
+ * Настройки сжатия FileCompressionManager
+ */
+class CompressionOptions {
+    private boolean runLengthEncoding = true;
+    private CompressionCodec codec = StandardCodec.DEFLATE;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int threads = 1;
+    private SharedDictionary sharedDictionary;
+    private PipelineMetrics metrics;
+    private Charset charset;
+    private boolean countDistinctLines;
+    
+    public boolean isRunLengthEncoding() {
+        return runLengthEncoding;
+    }
+    
+    public void setRunLengthEncoding(boolean runLengthEncoding) {
+        this.runLengthEncoding = runLengthEncoding;
+    }
+    
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+    
+    public void setCodec(CompressionCodec codec) {
+        this.codec = Objects.requireNonNull(codec);
+    }
+    
+    public int getLevel() {
+        return level;
+    }
+    
+    public int getThreads() {
+        return threads;
+    }
+    
+    public Charset getCharset() {
+        return charset;
+    }
+    
+    /**
+     * Кодировка исходного файла; null - определить по началу файла.
+     * С общим словарем допускается только UTF-8
+     */
+    public void setCharset(Charset charset) {
+        checkSharedDictionary(charset, sharedDictionary);
+        this.charset = charset;
+    }
+    
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Куда записывать замеры прохода сжатия; null - без замеров
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public boolean isCountDistinctLines() {
+        return countDistinctLines;
+    }
+    
+    /**
+     * Считать различные строки всего файла (BlockEncoder.distinctLines) по отпечаткам;
+     * память растет с их числом, поэтому по умолчанию выключено
+     */
+    public void setCountDistinctLines(boolean countDistinctLines) {
+        this.countDistinctLines = countDistinctLines;
+    }
+    
+    public SharedDictionary getSharedDictionary() {
+        return sharedDictionary;
+    }
+    
+    /**
+     * Общий словарь, обученный на похожих файлах; null - у каждого файла только свой словарь.
+     * Строки словаря хранятся в UTF-8, поэтому он несовместим с другой явно заданной кодировкой
+     */
+    public void setSharedDictionary(SharedDictionary sharedDictionary) {
+        checkSharedDictionary(charset, sharedDictionary);
+        this.sharedDictionary = sharedDictionary;
+    }
+    
+    private static void checkSharedDictionary(Charset charset, SharedDictionary sharedDictionary) {
+        if (sharedDictionary != null && charset != null && !charset.equals(StandardCharsets.UTF_8)) {
+            throw new IllegalArgumentException("Общий словарь поддерживается только для файлов в UTF-8: " +
+                                               charset.name());
+        }
+    }
+    
+    /**
+     * Количество потоков для сжатия блоков; 1 - последовательное сжатие
+     */
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Количество потоков должно быть положительным: " + threads);
+        }
+        this.threads = threads;
+    }
+    
+    /**
+     * Уровень сжатия кодека: для Deflate от 0 (без сжатия) до 9 (максимальное), -1 - по умолчанию
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+}
+
+/**
+ * Общий словарь строк для множества небольших похожих файлов.
+ * Обучается на образцах один раз и хранится в отдельном файле; сжатые файлы
+ * ссылаются на него по ID (CRC32 содержимого словаря).
+ * Формат файла: DICTIONARY_MAGIC, ID, количество строк, строки (varint длина + UTF-8).
+ * ID строк сопоставляются по тексту в UTF-8, поэтому и образцы, и сжимаемые
+ * с этим словарем файлы должны быть в UTF-8.
+ */
+class SharedDictionary {
+    static final int DICTIONARY_MAGIC = 0x46434D44;
+    
+    private final int id;
+    private final String[] lines;
+    private final byte[][] bytes;
+    private final Map<String, Integer> lineToId;
+    
+    private SharedDictionary(String[] lines) {
+        this.lines = lines;
+        this.bytes = new byte[lines.length][];
+        this.lineToId = new HashMap<>(lines.length * 2);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < lines.length; i++) {
+            bytes[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+            lineToId.put(lines[i], i);
+            crc.update(bytes[i]);
+            crc.update('\n');
+        }
+        this.id = (int) crc.getValue();
+    }
+    
+    /**
+     * Отбирает до maxEntries самых частых строк образцов, встретившихся хотя бы дважды.
+     * Самые частые строки получают самые маленькие ID.
+     */
+    static SharedDictionary train(List<Path> samples, int maxEntries) throws IOException {
+        LineCountIndex counts = new LineCountIndex();
+        for (Path sample : samples) {
+            Charset charset = CharsetDetector.detect(sample);
+            if (!charset.equals(StandardCharsets.UTF_8)) {
+                throw new IOException("Общий словарь обучается только на файлах в UTF-8, кодировка " +
+                                      sample + ": " + charset.name());
+            }
+            try (BufferedReader reader = FileDeduplicator.newLineReader(sample, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    counts.add(line);
+                }
+            }
+        }
+        List<LineCountIndex.Entry> top = counts.topDuplicated(maxEntries);
+        String[] lines = new String[top.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = top.get(i).line;
+        }
+        return new SharedDictionary(lines);
+    }
+    
+    static SharedDictionary load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != DICTIONARY_MAGIC) {
+                throw new IOException("Файл не является общим словарем: " + file);
+            }
+            int storedId = in.readInt();
+            String[] lines = new String[BinaryFormat.readVarInt(in)];
+            for (int i = 0; i < lines.length; i++) {
+                byte[] line = new byte[BinaryFormat.readVarInt(in)];
+                in.readFully(line);
+                lines[i] = new String(line, StandardCharsets.UTF_8);
+            }
+            SharedDictionary dictionary = new SharedDictionary(lines);
+            if (dictionary.id != storedId) {
+                throw new IOException("Общий словарь поврежден: " + file);
+            }
+            return dictionary;
+        }
+    }
+    
+    void save(Path file) throws IOException {
+        try (AtomicOutput output = new AtomicOutput(file)) {
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(output.path())))) {
+                out.writeInt(DICTIONARY_MAGIC);
+                out.writeInt(id);
+                BinaryFormat.writeVarInt(out, lines.length);
+                for (byte[] line : bytes) {
+                    BinaryFormat.writeVarInt(out, line.length);
+                    out.write(line);
+                }
+            }
+            output.commit();
+        }
+    }
+    
+    int getId() {
+        return id;
+    }
+    
+    int size() {
+        return lines.length;
+    }
+    
+    /**
+     * @return ID строки в словаре или null
+     */
+    Integer idOf(String line) {
+        return lineToId.get(line);
+    }
+    
+    String line(int id) {
+        return lines[id];
+    }
+    
+    byte[] bytes(int id) {
+        return bytes[id];
+    }
+    
+    int byteLength(int id) {
+        return bytes[id].length;
+    }
+}
+
+/**
+ * Кодек общего назначения для секций сжатого файла.
+ * ID кодека записывается в заголовок; сторонние кодеки подключаются через register.
+ */
+interface CompressionCodec {
+    int getId();
+    
+    String getName();
+    
+    byte[] encode(byte[] data, int level) throws IOException;
+    
+    byte[] decode(byte[] data, int rawLength) throws IOException;
+    
+    static void register(CompressionCodec codec) {
+        CodecRegistry.CODECS.put(codec.getId(), codec);
+    }
+    
+    static CompressionCodec forId(int id) throws IOException {
+        CompressionCodec codec = CodecRegistry.CODECS.get(id);
+        if (codec == null) {
+            throw new IOException("Неизвестный кодек: " + id);
+        }
+        return codec;
+    }
+}
+
+class CodecRegistry {
+    static final Map<Integer, CompressionCodec> CODECS = new HashMap<>();
+    
+    static {
+        for (StandardCodec codec : StandardCodec.values()) {
+            CODECS.put(codec.getId(), codec);
+        }
+    }
+}
+
+/**
+ * Встроенные кодеки
+ */
+enum StandardCodec implements CompressionCodec {
+    NONE(0, "без сжатия") {
+        @Override
+        public byte[] encode(byte[] data, int level) {
+            return data;
+        }
+        
+        @Override
+        public byte[] decode(byte[] data, int rawLength) {
+            return data;
+        }
+    },
+    DEFLATE(1, "Deflate") {
+        @Override
+        public byte[] encode(byte[] data, int level) {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+        
+        @Override
+        public byte[] decode(byte[] data, int rawLength) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                byte[] result = new byte[rawLength];
+                int length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    int inflated = inflater.inflate(result, length, rawLength - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != rawLength) {
+                    throw new IOException("Секция повреждена: ожидалось " + rawLength + " байт, получено " + length);
+                }
+                return result;
+            } catch (DataFormatException e) {
+                throw new IOException("Ошибка распаковки Deflate: " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+    
+    private final int id;
+    private final String name;
+    
+    StandardCodec(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+    
+    @Override
+    public int getId() {
+        return id;
+    }
+    
+    @Override
+    public String getName() {
+        return name;
+    }
+}
+
+/**
+ * Растущий массив int без упаковки в Integer
+ */
+class IntList {
+    private int[] values;
+    private int size;
+    
+    IntList(int capacity) {
+        values = new int[Math.max(16, capacity)];
+    }
+    
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+    
+    int get(int index) {
+        return values[index];
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    void clear() {
+        size = 0;
+    }
+}
+
+/**
+ * Примитивы двоичного формата: varint и упаковка чисел фиксированной ширины в биты
+ */
+class BinaryFormat {
+    
+    /**
+     * Записывает неотрицательное число по 7 бит в байте, старший бит - признак продолжения
+     */
+    static void writeVarInt(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Слишком длинное число varint");
+    }
+    
+    static int readVarInt(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Значение не помещается в int: " + value);
+        }
+        return (int) value;
+    }
+    
+    /**
+     * Количество бит, достаточное для чисел 0..count-1 (не меньше 1)
+     */
+    static int bitsFor(int count) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, count - 1)));
+    }
+    
+    /**
+     * Секция словаря: для каждой строки длина в байтах (varint) и UTF-8
+     */
+    static byte[] encodeDictionary(List<String> lines, IntList byteLengths, Charset charset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String line : lines) {
+            byte[] encoded = line.getBytes(charset);
+            writeVarInt(out, encoded.length);
+            out.write(encoded);
+            byteLengths.add(encoded.length);
+        }
+        return bytes.toByteArray();
+    }
+    
+    static String[] decodeDictionary(byte[] section, int count, Charset charset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(section));
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = readVarInt(in);
+            lines[i] = new String(section, section.length - in.available(), length, charset);
+            in.skipBytes(length);
+        }
+        return lines;
+    }
+    
+    /**
+     * Секция ID без RLE: ширина в битах и упакованные значения
+     */
+    static byte[] encodePacked(IntList ids, int bitWidth) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(bitWidth);
+        writePacked(out, ids, bitWidth);
+        return bytes.toByteArray();
+    }
+    
+    static int[] decodePacked(byte[] section, int count) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(section));
+        return readPacked(in, count, in.readUnsignedByte());
+    }
+    
+    /**
+     * Секция ID с RLE: пары (ID, длина серии) в виде varint
+     */
+    static byte[] encodeRuns(IntList ids) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int i = 0;
+        while (i < ids.size()) {
+            int id = ids.get(i);
+            int runEnd = i + 1;
+            while (runEnd < ids.size() && ids.get(runEnd) == id) {
+                runEnd++;
+            }
+            writeVarInt(out, id);
+            writeVarInt(out, runEnd - i);
+            i = runEnd;
+        }
+        return bytes.toByteArray();
+    }
+    
+    static int[] decodeRuns(byte[] section, int count) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(section));
+        int[] ids = new int[count];
+        int position = 0;
+        while (position < count) {
+            int id = readVarInt(in);
+            int run = readVarInt(in);
+            if (run > count - position) {
+                throw new IOException("Серия RLE выходит за пределы файла");
             }
+            Arrays.fill(ids, position, position + run, id);
+            position += run;
         }
-        
-        // Восстанавливаем оригинальные строки
-        List<String> restoredLines = new ArrayList<>();
-        for (int id : lineIds) {
-            String originalLine = idToLine.get(id);
-            if (originalLine != null) {
-                restoredLines.add(originalLine);
-            } else {
-                System.err.println("Предупреждение: не найден ID " + id);
-                restoredLines.add("??? ВОССТАНОВЛЕНИЕ_ОШИБКИ ???");
+        return ids;
+    }
+    
+    /**
+     * Секция на диске: исходная длина, длина после кодека, закодированные байты
+     */
+    static void writeSection(DataOutput out, int rawLength, byte[] encoded) throws IOException {
+        writeVarInt(out, rawLength);
+        writeVarInt(out, encoded.length);
+        out.write(encoded);
+    }
+    
+    static byte[] readSection(DataInput in, CompressionCodec codec) throws IOException {
+        int rawLength = readVarInt(in);
+        byte[] encoded = new byte[readVarInt(in)];
+        in.readFully(encoded);
+        return codec.decode(encoded, rawLength);
+    }
+    
+    static void writePacked(DataOutput out, IntList values, int bitWidth) throws IOException {
+        long buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < values.size(); i++) {
+            buffer |= (values.get(i) & 0xFFFFFFFFL) << bits;
+            bits += bitWidth;
+            while (bits >= 8) {
+                out.writeByte((int) buffer);
+                buffer >>>= 8;
+                bits -= 8;
             }
         }
-        
-        // Сохраняем восстановленный файл
-        Files.write(outputFile, restoredLines);
-        
-        System.out.println("Восстановлен файл из сжатой версии:");
-        System.out.println("  Восстановлено строк: " + restoredLines.size());
-        System.out.println("  Уникальных строк в словаре: " + idToLine.size());
+        if (bits > 0) {
+            out.writeByte((int) buffer);
+        }
+    }
+    
+    static int[] readPacked(DataInput in, int count, int bitWidth) throws IOException {
+        int[] values = new int[count];
+        long mask = (1L << bitWidth) - 1;
+        long buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < count; i++) {
+            while (bits < bitWidth) {
+                buffer |= (long) in.readUnsignedByte() << bits;
+                bits += 8;
+            }
+            values[i] = (int) (buffer & mask);
+            buffer >>>= bitWidth;
+            bits -= bitWidth;
+        }
+        return values;
     }
 }
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 public class FileProcessor {
     
+    private static final int COMPARE_CHUNK_SIZE = 1 << 20;
+    private static final int COMPARE_WINDOW_SIZE = 64 << 20;
+    private static final int DIFF_CONTEXT_LINES = 3;
+    private static final int MAX_PRINTED_HUNKS = 20;
+    
     public static void main(String[] args) {
+        // С аргументами программа работает без меню, см. BatchRunner
+        if (args.length > 0) {
+            System.exit(BatchRunner.run(args));
+        }
+        
         Scanner scanner = new Scanner(System.in);
         
         System.out.println("=== ОБРАБОТКА ФАЙЛОВ: УДАЛЕНИЕ ДУБЛИКАТОВ И СЖАТИЕ ===\n");
@@ -256,7 +4488,8 @@ public class FileProcessor {
             System.out.println("3. Создать сжатую версию файла");
             System.out.println("4. Восстановить файл из сжатой версии");
             System.out.println("5. Сравнить файлы");
-            System.out.println("6. Выход");
+            System.out.println("6. Быстро проверить идентичность файлов");
+            System.out.println("7. Выход");
             System.out.print("Ваш выбор: ");
             
             try {
@@ -280,6 +4513,9 @@ public class FileProcessor {
                         processComparison(scanner);
                         break;
                     case 6:
+                        processStreamingComparison(scanner);
+                        break;
+                    case 7:
                         System.out.println("Программа завершена.");
                         return;
                     default:
@@ -361,42 +4597,205 @@ public class FileProcessor {
         }
     }
     
+    private static void processStreamingComparison(Scanner scanner) {
+        System.out.print("Введите путь к первому файлу: ");
+        String file1Path = scanner.nextLine();
+        System.out.print("Введите путь ко второму файлу: ");
+        String file2Path = scanner.nextLine();
+        
+        try {
+            compareFilesStreaming(Paths.get(file1Path), Paths.get(file2Path));
+        } catch (IOException e) {
+            System.out.println("❌ Ошибка при сравнении файлов: " + e.getMessage());
+        }
+    }
+    
     private static void compareFiles(Path file1, Path file2) throws IOException {
         if (!Files.exists(file1) || !Files.exists(file2)) {
             throw new FileNotFoundException("Один из файлов не найден");
         }
         
+        System.out.println("\n=== СРАВНЕНИЕ ФАЙЛОВ ===");
+        
+        // Быстрый путь: одинаковые файлы подтверждаются без разбора на строки
+        if (haveSameContent(file1, file2)) {
+            System.out.println("Файл 1: " + file1.getFileName() + " (" + Files.size(file1) + " байт)");
+            System.out.println("Файл 2: " + file2.getFileName() + " (" + Files.size(file2) + " байт)");
+            System.out.println("✅ Файлы идентичны!");
+            return;
+        }
+        
         List<String> lines1 = Files.readAllLines(file1);
         List<String> lines2 = Files.readAllLines(file2);
         
-        System.out.println("\n=== СРАВНЕНИЕ ФАЙЛОВ ===");
         System.out.println("Файл 1: " + file1.getFileName() + " (" + lines1.size() + " строк)");
         System.out.println("Файл 2: " + file2.getFileName() + " (" + lines2.size() + " строк)");
         
-        if (lines1.equals(lines2)) {
+        List<LineDiff.Hunk> hunks = LineDiff.diff(lines1, lines2, DIFF_CONTEXT_LINES);
+        if (hunks.isEmpty()) {
+            // Содержимое строк совпадает, различаются только переводы строк
+            System.out.println("✅ Строки файлов идентичны (различаются только разделители строк)");
+            return;
+        }
+        
+        System.out.println("❌ Файлы различаются!");
+        int deleted = 0, inserted = 0;
+        for (LineDiff.Hunk hunk : hunks) {
+            deleted += hunk.getDeletedCount();
+            inserted += hunk.getInsertedCount();
+        }
+        System.out.println("Блоков различий: " + hunks.size() +
+                           ", удалено строк: " + deleted + ", добавлено строк: " + inserted);
+        
+        System.out.println("--- " + file1);
+        System.out.println("+++ " + file2);
+        int printed = Math.min(hunks.size(), MAX_PRINTED_HUNKS);
+        for (int i = 0; i < printed; i++) {
+            for (String line : hunks.get(i).toUnifiedLines()) {
+                System.out.println(line);
+            }
+        }
+        if (hunks.size() > printed) {
+            System.out.println("... и еще " + (hunks.size() - printed) + " блоков различий");
+        }
+    }
+    
+    /**
+     * Потоковая проверка идентичности: файлы отображаются в память окнами
+     * и сравниваются ByteBuffer.mismatch, строки не строятся.
+     * Для первого различия выводятся смещение, номер строки и столбца.
+     */
+    private static void compareFilesStreaming(Path file1, Path file2) throws IOException {
+        if (!Files.exists(file1) || !Files.exists(file2)) {
+            throw new FileNotFoundException("Один из файлов не найден");
+        }
+        
+        System.out.println("\n=== ПОТОКОВОЕ СРАВНЕНИЕ ФАЙЛОВ ===");
+        System.out.println("Файл 1: " + file1.getFileName() + " (" + Files.size(file1) + " байт)");
+        System.out.println("Файл 2: " + file2.getFileName() + " (" + Files.size(file2) + " байт)");
+        
+        long mismatch = findFirstMismatch(file1, file2);
+        if (mismatch < 0) {
             System.out.println("✅ Файлы идентичны!");
-        } else {
-            System.out.println("❌ Файлы различаются!");
+            return;
+        }
+        
+        long[] position = lineAndColumn(file1, mismatch);
+        System.out.println("❌ Файлы различаются!");
+        System.out.println("Первое различие: байт " + mismatch +
+                           ", строка " + position[0] + ", столбец " + position[1]);
+        if (mismatch == Math.min(Files.size(file1), Files.size(file2))) {
+            System.out.println("Один файл является началом другого");
+        }
+    }
+    
+    /**
+     * Ищет смещение первого различающегося байта
+     * @return смещение или -1, если файлы идентичны
+     */
+    static long findFirstMismatch(Path file1, Path file2) throws IOException {
+        try (FileChannel channel1 = FileChannel.open(file1, StandardOpenOption.READ);
+             FileChannel channel2 = FileChannel.open(file2, StandardOpenOption.READ)) {
+            long size1 = channel1.size();
+            long size2 = channel2.size();
+            long common = Math.min(size1, size2);
             
-            // Находим различия
-            int minSize = Math.min(lines1.size(), lines2.size());
-            for (int i = 0; i < minSize; i++) {
-                if (!lines1.get(i).equals(lines2.get(i))) {
-                    System.out.println("Различие в строке " + (i + 1) + ":");
-                    System.out.println("  Файл 1: " + lines1.get(i));
-                    System.out.println("  Файл 2: " + lines2.get(i));
-                    break;
+            for (long position = 0; position < common; position += COMPARE_WINDOW_SIZE) {
+                long length = Math.min(COMPARE_WINDOW_SIZE, common - position);
+                MappedByteBuffer window1 = channel1.map(FileChannel.MapMode.READ_ONLY, position, length);
+                MappedByteBuffer window2 = channel2.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int mismatch = window1.mismatch(window2);
+                if (mismatch >= 0) {
+                    return position + mismatch;
                 }
             }
-            
-            if (lines1.size() != lines2.size()) {
-                System.out.println("Разное количество строк:");
-                System.out.println("  Файл 1: " + lines1.size() + " строк");
-                System.out.println("  Файл 2: " + lines2.size() + " строк");
+            return size1 == size2 ? -1 : common;
+        }
+    }
+    
+    /**
+     * Переводит смещение в файле в номер строки и столбца (оба с 1).
+     * Просматриваются только байты до смещения; столбец считается в символах UTF-8.
+     */
+    static long[] lineAndColumn(Path file, long offset) throws IOException {
+        long line = 1;
+        long column = 1;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = Math.min(offset, channel.size());
+            for (long position = 0; position < end; position += COMPARE_WINDOW_SIZE) {
+                int length = (int) Math.min(COMPARE_WINDOW_SIZE, end - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                for (int i = 0; i < length; i++) {
+                    byte b = window.get(i);
+                    if (b == '\n') {
+                        line++;
+                        column = 1;
+                    } else if ((b & 0xC0) != 0x80) {
+                        // Байты продолжения UTF-8 не начинают новый символ
+                        column++;
+                    }
+                }
+            }
+            // Различие внутри многобайтового символа относится к этому символу
+            if (offset < channel.size() && column > 1) {
+                ByteBuffer current = ByteBuffer.allocate(1);
+                channel.read(current, offset);
+                if ((current.get(0) & 0xC0) == 0x80) {
+                    column--;
+                }
+            }
+        }
+        return new long[] {line, column};
+    }
+    
+    /**
+     * Сравнивает файлы по размеру, а затем побайтно блоками фиксированного размера.
+     * Память не зависит от размера файлов, чтение прекращается на первом различающемся блоке.
+     */
+    private static boolean haveSameContent(Path file1, Path file2) throws IOException {
+        if (Files.size(file1) != Files.size(file2)) {
+            return false;
+        }
+        try (FileChannel channel1 = FileChannel.open(file1, StandardOpenOption.READ);
+             FileChannel channel2 = FileChannel.open(file2, StandardOpenOption.READ)) {
+            ByteBuffer buffer1 = ByteBuffer.allocateDirect(COMPARE_CHUNK_SIZE);
+            ByteBuffer buffer2 = ByteBuffer.allocateDirect(COMPARE_CHUNK_SIZE);
+            while (true) {
+                boolean more1 = readChunk(channel1, buffer1);
+                boolean more2 = readChunk(channel2, buffer2);
+                if (buffer1.remaining() != buffer2.remaining()) {
+                    return false;
+                }
+                if (!buffer1.hasRemaining()) {
+                    return true;
+                }
+                // Блоки уже в памяти: сравниваем байты, а не контрольные суммы
+                if (buffer1.mismatch(buffer2) != -1) {
+                    return false;
+                }
+                if (!more1 || !more2) {
+                    return more1 == more2;
+                }
             }
         }
     }
     
+    /**
+     * Заполняет буфер очередным блоком файла
+     * @return false, если достигнут конец файла
+     */
+    private static boolean readChunk(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+    
     /**
      * Создает тестовый файл с дублирующимися строками
      */
@@ -423,3 +4822,590 @@ public class FileProcessor {
         }
     }
 }
+
+/**
+ * Неинтерактивный режим для конвейеров:
+ *   FileProcessor <dedup|compress|restore|compare> [параметры] <файл|каталог|маска>...
+ * Параметры:
+ *   --out DIR     каталог для результатов (структура подкаталогов сохраняется);
+ *                 без него результат пишется рядом с исходным файлом
+ *   --threads N   сколько файлов обрабатывается одновременно
+ *   --dict FILE   общий словарь для compress/restore
+ *   --with PATH   для compare: файл или каталог, с которым сравнивать
+ *   --metrics     добавить к строке файла замеры PipelineMetrics (dedup, compress, restore)
+ *   --charset CS  кодировка входных файлов для dedup/compress; auto (по умолчанию) -
+ *                 определить для каждого файла по его началу
+ * Каталоги обходятся рекурсивно, маски вида logs/**.txt разбираются как glob
+ * относительно части пути до первого спецсимвола.
+ * Для каждого файла в stdout выводится одна строка JSON; сообщения самих операций
+ * на время работы перенаправляются в stderr. Поля строки: command, file, output
+ * (with у compare), status, bytesIn, bytesOut (comparedBytes у compare), elapsedMs;
+ * lines и uniques у dedup, compress и restore; identical и mismatchOffset у compare;
+ * error при ошибке и metrics при --metrics.
+ * Код возврата: 0 - успех, 1 - были ошибки, 2 - неверные аргументы.
+ */
+class BatchRunner {
+    private static final String COMPRESSED_SUFFIX = ".fcm";
+    private static final String DEDUP_SUFFIX = ".dedup";
+    private static final String RESTORED_SUFFIX = ".restored";
+    private static final List<String> COMMANDS = Arrays.asList("dedup", "compress", "restore", "compare");
+    
+    private final String command;
+    private final List<String> inputs = new ArrayList<>();
+    private Path outputDir;
+    private Path compareWith;
+    private Path dictionaryFile;
+    private SharedDictionary dictionary;
+    private boolean collectMetrics;
+    private Charset charset;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    
+    private PrintStream report;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    
+    private BatchRunner(String command) {
+        this.command = command;
+    }
+    
+    static int run(String[] args) {
+        BatchRunner runner;
+        try {
+            runner = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка: " + e.getMessage());
+            printUsage();
+            return 2;
+        }
+        
+        PrintStream stdout = System.out;
+        runner.report = stdout;
+        System.setOut(System.err);
+        try {
+            runner.execute();
+        } catch (IOException e) {
+            System.err.println("Ошибка: " + e.getMessage());
+            return 1;
+        } finally {
+            System.setOut(stdout);
+        }
+        
+        System.err.println("Обработано файлов: " + runner.processed.get() + ", с ошибками: " + runner.failures.get());
+        return runner.failures.get() > 0 ? 1 : 0;
+    }
+    
+    private static BatchRunner parse(String[] args) {
+        if (!COMMANDS.contains(args[0])) {
+            throw new IllegalArgumentException("неизвестная команда " + args[0]);
+        }
+        BatchRunner runner = new BatchRunner(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--metrics")) {
+                runner.collectMetrics = true;
+            } else if (arg.startsWith("--")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("не указано значение параметра " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--out":
+                        runner.outputDir = Paths.get(value);
+                        break;
+                    case "--threads":
+                        try {
+                            runner.threads = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("неверное число потоков " + value);
+                        }
+                        if (runner.threads < 1) {
+                            throw new IllegalArgumentException("неверное число потоков " + value);
+                        }
+                        break;
+                    case "--dict":
+                        runner.dictionaryFile = Paths.get(value);
+                        break;
+                    case "--with":
+                        runner.compareWith = Paths.get(value);
+                        break;
+                    case "--charset":
+                        try {
+                            runner.charset = value.equals("auto") ? null : Charset.forName(value);
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("неизвестная кодировка " + value);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("неизвестный параметр " + arg);
+                }
+            } else {
+                runner.inputs.add(arg);
+            }
+        }
+        if (runner.inputs.isEmpty()) {
+            throw new IllegalArgumentException("не указаны входные файлы");
+        }
+        if (runner.command.equals("compare") && runner.compareWith == null) {
+            throw new IllegalArgumentException("для compare нужен параметр --with");
+        }
+        if (runner.dictionaryFile != null && runner.charset != null &&
+            !runner.charset.equals(StandardCharsets.UTF_8)) {
+            throw new IllegalArgumentException("общий словарь поддерживается только для UTF-8, указана кодировка " +
+                                               runner.charset.name());
+        }
+        return runner;
+    }
+    
+    private static void printUsage() {
+        System.err.println("Использование: FileProcessor <dedup|compress|restore|compare> [параметры] <файл|каталог|маска>...");
+        System.err.println("  --out DIR     каталог для результатов");
+        System.err.println("  --threads N   количество файлов, обрабатываемых одновременно");
+        System.err.println("  --dict FILE   общий словарь для compress/restore");
+        System.err.println("  --with PATH   файл или каталог для сравнения (compare)");
+        System.err.println("  --metrics     замеры времени этапов и памяти (dedup, compress, restore)");
+        System.err.println("  --charset CS  кодировка входных файлов (dedup, compress), по умолчанию auto");
+    }
+    
+    /**
+     * Обрабатывает файлы в пуле с ограниченной очередью: когда очередь заполнена,
+     * задачу выполняет поток, перебирающий файлы, и обход сам собой притормаживает
+     */
+    private void execute() throws IOException {
+        if (dictionaryFile != null) {
+            dictionary = SharedDictionary.load(dictionaryFile);
+        }
+        
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (String input : inputs) {
+                // Список собирается до обработки, чтобы обход не подхватил новые результаты
+                Map<Path, Path> files = collectFiles(input);
+                if (files.isEmpty()) {
+                    System.err.println("Нет файлов по пути: " + input);
+                }
+                for (Map.Entry<Path, Path> file : files.entrySet()) {
+                    pool.execute(() -> process(file.getKey(), file.getValue()));
+                }
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                throw new InterruptedIOException("Обработка прервана");
+            }
+        }
+    }
+    
+    /**
+     * Раскрывает файл, каталог или маску в обычные файлы
+     * @return файл -> корень, относительно которого строится путь результата
+     */
+    private static Map<Path, Path> collectFiles(String input) throws IOException {
+        Map<Path, Path> files = new LinkedHashMap<>();
+        int special = indexOfGlobChar(input);
+        if (special < 0) {
+            Path path = Paths.get(input);
+            if (Files.isDirectory(path)) {
+                addRegularFiles(path, null, files);
+            } else if (Files.isRegularFile(path)) {
+                Path parent = path.toAbsolutePath().getParent();
+                files.put(path, parent != null ? parent : path);
+            }
+            return files;
+        }
+        
+        int slash = Math.max(input.lastIndexOf('/', special), input.lastIndexOf(File.separatorChar, special));
+        Path root = slash < 0 ? Paths.get("") : Paths.get(input.substring(0, slash + 1));
+        if (Files.isDirectory(root.toAbsolutePath())) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(slash + 1));
+            addRegularFiles(root, matcher, files);
+        }
+        return files;
+    }
+    
+    private static void addRegularFiles(Path start, PathMatcher matcher, Map<Path, Path> files) throws IOException {
+        Path walkRoot = start.toString().isEmpty() ? Paths.get(".") : start;
+        try (Stream<Path> walk = Files.walk(walkRoot)) {
+            walk.filter(Files::isRegularFile)
+                .filter(file -> matcher == null || matcher.matches(walkRoot.relativize(file)))
+                .forEach(file -> files.put(file, walkRoot));
+        }
+    }
+    
+    private static int indexOfGlobChar(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private void process(Path file, Path root) {
+        long start = System.nanoTime();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("command", command);
+        result.put("file", file.toString());
+        PipelineMetrics metrics = collectMetrics && !command.equals("compare") ? new PipelineMetrics(command) : null;
+        try {
+            long bytesIn = Files.size(file);
+            Path output = command.equals("compare") ? resolveCompared(file, root) : outputFor(file, root);
+            result.put(command.equals("compare") ? "with" : "output", output.toString());
+            if (!command.equals("compare") && output.getParent() != null) {
+                Files.createDirectories(output.getParent());
+            }
+            
+            switch (command) {
+                case "dedup": {
+                    Charset fileCharset = charset != null ? charset : CharsetDetector.detect(file);
+                    result.put("charset", fileCharset.name());
+                    if (!fileCharset.equals(StandardCharsets.UTF_8) && !CharsetDetector.isSingleByte(fileCharset)) {
+                        // Многобайтовые кодировки кроме UTF-8 (UTF-16) нельзя делить на строки по байтам
+                        DedupStats stats = FileDeduplicator.removeDuplicates(file, output, fileCharset, metrics);
+                        result.put("lines", stats.totalLines);
+                        result.put("uniques", stats.uniqueLines);
+                    } else if (metrics != null) {
+                        // Этапы чтения, хеширования и записи разделены в потоковом варианте;
+                        // однобайтовые кодировки он замеряет одним этапом dedup
+                        long removed = FileDeduplicator.removeDuplicatesStreaming(file, output, fileCharset, metrics);
+                        result.put("lines", metrics.getLines());
+                        result.put("uniques", metrics.getLines() - removed);
+                    } else {
+                        DedupStats stats;
+                        try (AtomicOutput atomic = new AtomicOutput(output)) {
+                            stats = CharsetDetector.isSingleByte(fileCharset)
+                                ? new ByteDeduplicator().run(file, atomic.path(), fileCharset)
+                                : new ByteDeduplicator().run(file, atomic.path());
+                            atomic.commit();
+                        }
+                        result.put("lines", stats.totalLines);
+                        result.put("uniques", stats.uniqueLines);
+                    }
+                    break;
+                }
+                case "compress": {
+                    CompressionOptions options = new CompressionOptions();
+                    options.setSharedDictionary(dictionary);
+                    options.setMetrics(metrics);
+                    options.setCountDistinctLines(true);
+                    options.setCharset(charset != null ? charset : CharsetDetector.detect(file));
+                    result.put("charset", options.getCharset().name());
+                    BlockEncoder encoder = FileCompressionManager.compress(file, output, options);
+                    result.put("lines", encoder.totalLines);
+                    result.put("uniques", encoder.distinctLines);
+                    break;
+                }
+                case "restore": {
+                    DedupStats stats = FileCompressionManager.restoreWithStats(file, output, dictionary, metrics);
+                    result.put("lines", stats.totalLines);
+                    result.put("uniques", stats.uniqueLines);
+                    break;
+                }
+                default: {
+                    if (!Files.isRegularFile(output)) {
+                        throw new FileNotFoundException("Нет файла для сравнения: " + output);
+                    }
+                    long mismatch = FileProcessor.findFirstMismatch(file, output);
+                    result.put("identical", mismatch < 0);
+                    if (mismatch >= 0) {
+                        result.put("mismatchOffset", mismatch);
+                    }
+                    break;
+                }
+            }
+            result.put("status", "ok");
+            result.put("bytesIn", bytesIn);
+            // У compare нет выходного файла: второй файл - это сравниваемые данные
+            result.put(command.equals("compare") ? "comparedBytes" : "bytesOut", Files.size(output));
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            result.put("status", "error");
+            result.put("error", String.valueOf(e.getMessage()));
+        }
+        result.put("elapsedMs", (System.nanoTime() - start) / 1_000_000);
+        if (metrics != null && metrics.getElapsedNanos() > 0 && "ok".equals(result.get("status"))) {
+            result.put("metrics", metrics.toMap());
+        }
+        processed.incrementAndGet();
+        report.println(Json.object(result));
+    }
+    
+    private Path outputFor(Path file, Path root) {
+        String name = file.getFileName().toString();
+        String targetName;
+        switch (command) {
+            case "compress":
+                targetName = name + COMPRESSED_SUFFIX;
+                break;
+            case "restore":
+                targetName = name.endsWith(COMPRESSED_SUFFIX)
+                    ? name.substring(0, name.length() - COMPRESSED_SUFFIX.length())
+                    : name;
+                if (outputDir == null) {
+                    targetName += RESTORED_SUFFIX;
+                }
+                break;
+            default:
+                targetName = outputDir == null ? name + DEDUP_SUFFIX : name;
+        }
+        if (outputDir == null) {
+            return file.resolveSibling(targetName);
+        }
+        Path relative = root.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize());
+        return outputDir.resolve(relative).resolveSibling(targetName);
+    }
+    
+    /**
+     * Для compare: файл с тем же относительным путем в --with, либо сам --with, если это файл
+     */
+    private Path resolveCompared(Path file, Path root) {
+        if (!Files.isDirectory(compareWith)) {
+            return compareWith;
+        }
+        return compareWith.resolve(root.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize()));
+    }
+}
+
+/**
+ * Построчный diff по алгоритму Майерса в линейной памяти (поиск "среднего змея"
+ * и рекурсия по половинам). Строки заменяются целочисленными ID, так что
+ * сравнение строк внутри алгоритма сводится к сравнению int.
+ * Результат - блоки в формате unified diff.
+ */
+class LineDiff {
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] deleted;
+    private final boolean[] inserted;
+    private final int[] forward;
+    private final int[] backward;
+    
+    private LineDiff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.deleted = new boolean[a.length];
+        this.inserted = new boolean[b.length];
+        int size = 2 * ((a.length + b.length + 1) / 2) + 3;
+        this.forward = new int[size];
+        this.backward = new int[size];
+    }
+    
+    /**
+     * Строит блоки различий между двумя списками строк
+     * @param context количество неизмененных строк вокруг каждого изменения
+     */
+    static List<Hunk> diff(List<String> lines1, List<String> lines2, int context) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = toIds(lines1, ids);
+        int[] b = toIds(lines2, ids);
+        
+        LineDiff diff = new LineDiff(a, b);
+        diff.compare(0, a.length, 0, b.length);
+        return diff.buildHunks(lines1, lines2, context);
+    }
+    
+    private static int[] toIds(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        int i = 0;
+        for (String line : lines) {
+            Integer id = ids.get(line);
+            if (id == null) {
+                id = ids.size();
+                ids.put(line, id);
+            }
+            result[i++] = id;
+        }
+        return result;
+    }
+    
+    /**
+     * Отмечает удаленные и добавленные строки на участке a[aStart, aEnd) / b[bStart, bEnd)
+     */
+    private void compare(int aStart, int aEnd, int bStart, int bEnd) {
+        // Общие начало и конец не участвуют в поиске
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+        
+        if (aStart == aEnd) {
+            Arrays.fill(inserted, bStart, bEnd, true);
+            return;
+        }
+        if (bStart == bEnd) {
+            Arrays.fill(deleted, aStart, aEnd, true);
+            return;
+        }
+        
+        int[] snake = middleSnake(aStart, aEnd, bStart, bEnd);
+        compare(aStart, snake[0], bStart, snake[1]);
+        compare(snake[2], aEnd, snake[3], bEnd);
+    }
+    
+    /**
+     * Находит середину кратчайшего пути редактирования, двигаясь одновременно
+     * с начала и с конца участка
+     * @return {x, y, u, v} - начало и конец диагонального отрезка ("змея")
+     */
+    private int[] middleSnake(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]))
+                    ? forward[offset + k + 1]
+                    : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x, startY = y;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                if (odd && k >= delta - (d - 1) && k <= delta + (d - 1)
+                        && x + backward[offset + delta - k] >= n) {
+                    return new int[] {aStart + startX, bStart + startY, aStart + x, bStart + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1]))
+                    ? backward[offset + k + 1]
+                    : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x, startY = y;
+                while (x < n && y < m && a[aEnd - 1 - x] == b[bEnd - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                if (!odd && delta - k >= -d && delta - k <= d
+                        && x + forward[offset + delta - k] >= n) {
+                    return new int[] {aEnd - x, bEnd - y, aEnd - startX, bEnd - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("Не найден средний участок пути редактирования");
+    }
+    
+    /**
+     * Собирает отмеченные изменения в блоки, объединяя изменения,
+     * между которыми меньше 2 * context общих строк
+     */
+    private List<Hunk> buildHunks(List<String> lines1, List<String> lines2, int context) {
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0, j = 0;
+        Hunk current = null;
+        int lastChangeI = 0, lastChangeJ = 0;
+        
+        while (i < a.length || j < b.length) {
+            boolean change = (i < a.length && deleted[i]) || (j < b.length && inserted[j]);
+            if (!change) {
+                i++;
+                j++;
+                continue;
+            }
+            
+            if (current != null && i - lastChangeI > 2 * context) {
+                current.close(lines1, lastChangeI, lastChangeJ, context);
+                hunks.add(current);
+                current = null;
+            }
+            if (current == null) {
+                int before = Math.min(context, Math.min(i, j));
+                current = new Hunk(i - before, j - before);
+                for (int c = before; c > 0; c--) {
+                    current.lines.add(" " + lines1.get(i - c));
+                }
+            } else {
+                for (int c = lastChangeI; c < i; c++) {
+                    current.lines.add(" " + lines1.get(c));
+                }
+            }
+            
+            while (i < a.length && deleted[i]) {
+                current.lines.add("-" + lines1.get(i++));
+                current.deletedCount++;
+            }
+            while (j < b.length && inserted[j]) {
+                current.lines.add("+" + lines2.get(j++));
+                current.insertedCount++;
+            }
+            lastChangeI = i;
+            lastChangeJ = j;
+        }
+        if (current != null) {
+            current.close(lines1, lastChangeI, lastChangeJ, context);
+            hunks.add(current);
+        }
+        return hunks;
+    }
+    
+    /**
+     * Блок различий unified diff: контекст, удаленные (-) и добавленные (+) строки
+     */
+    static class Hunk {
+        private final int start1;
+        private final int start2;
+        private int length1;
+        private int length2;
+        private int deletedCount;
+        private int insertedCount;
+        private final List<String> lines = new ArrayList<>();
+        
+        Hunk(int start1, int start2) {
+            this.start1 = start1;
+            this.start2 = start2;
+        }
+        
+        /**
+         * Добавляет завершающий контекст и вычисляет длины блока в обоих файлах
+         */
+        private void close(List<String> lines1, int end1, int end2, int context) {
+            int after = Math.min(context, lines1.size() - end1);
+            for (int c = 0; c < after; c++) {
+                lines.add(" " + lines1.get(end1 + c));
+            }
+            length1 = end1 + after - start1;
+            length2 = end2 + after - start2;
+        }
+        
+        public int getDeletedCount() {
+            return deletedCount;
+        }
+        
+        public int getInsertedCount() {
+            return insertedCount;
+        }
+        
+        /**
+         * Заголовок блока и его строки в формате unified diff (номера строк с 1)
+         */
+        public List<String> toUnifiedLines() {
+            List<String> result = new ArrayList<>(lines.size() + 1);
+            result.add("@@ -" + range(start1, length1) + " +" + range(start2, length2) + " @@");
+            result.addAll(lines);
+            return result;
+        }
+        
+        private static String range(int start, int length) {
+            // Как в diff -u: для пустого диапазона указывается строка перед ним
+            int first = length == 0 ? start : start + 1;
+            return length == 1 ? String.valueOf(first) : first + "," + length;
+        }
+    }
+}
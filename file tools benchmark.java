@@ -0,0 +1,156 @@
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH-бенчмарки удаления дубликатов, сжатия и восстановления.
+ * Входные файлы генерируются заново для каждого набора параметров:
+ * количество строк, длина строки, доля дубликатов и алфавит (латиница или кириллица,
+ * как тестовые данные в FileProcessor.createTestFile).
+ *
+ * Кроме ops/s выводится bytes/s (счетчик bytes) и gc.alloc.rate.norm
+ * (профилировщик GCProfiler подключается в main).
+ * Запуск: java -cp <классы и jmh> FileToolsBenchmark [параметры JMH]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dfile.encoding=UTF-8", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class FileToolsBenchmark {
+    
+    @Param({"100000", "1000000"})
+    public int lineCount;
+    
+    @Param({"20", "200"})
+    public int lineLength;
+    
+    @Param({"0.1", "0.5", "0.9"})
+    public double duplicateRatio;
+    
+    @Param({"ASCII", "CYRILLIC"})
+    public String alphabet;
+    
+    private Path directory;
+    private Path inputFile;
+    private Path compressedFile;
+    private Path outputFile;
+    private long inputSize;
+    private PrintStream console;
+    
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        directory = Files.createTempDirectory("file-tools-benchmark");
+        inputFile = directory.resolve("input.txt");
+        compressedFile = directory.resolve("input.fcm");
+        outputFile = directory.resolve("output.txt");
+        
+        TestData.write(inputFile, lineCount, lineLength, duplicateRatio, alphabet);
+        inputSize = Files.size(inputFile);
+        
+        // Методы печатают статистику; в замер вывод на консоль попадать не должен
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        FileCompressionManager.createCompressedVersion(inputFile, compressedFile);
+    }
+    
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        System.setOut(console);
+        for (Path file : Arrays.asList(inputFile, compressedFile, outputFile)) {
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(directory);
+    }
+    
+    /**
+     * Счетчик обработанных байт: JMH выводит его как скорость bytes/s
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long bytes;
+    }
+    
+    @Benchmark
+    public int removeDuplicates(Throughput throughput) throws IOException {
+        throughput.bytes += inputSize;
+        return FileDeduplicator.removeDuplicates(inputFile, outputFile);
+    }
+    
+    @Benchmark
+    public int removeDuplicatesWithDetails(Throughput throughput) throws IOException {
+        throughput.bytes += inputSize;
+        return FileDeduplicator.removeDuplicatesWithDetails(inputFile, outputFile);
+    }
+    
+    @Benchmark
+    public void createCompressedVersion(Throughput throughput, Blackhole blackhole) throws IOException {
+        throughput.bytes += inputSize;
+        FileCompressionManager.createCompressedVersion(inputFile, outputFile);
+        blackhole.consume(outputFile);
+    }
+    
+    @Benchmark
+    public long restoreFromCompressed(Throughput throughput) throws IOException {
+        throughput.bytes += inputSize;
+        return FileCompressionManager.restoreFromCompressed(compressedFile, outputFile);
+    }
+    
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(FileToolsBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
+
+/**
+ * Генератор синтетических входных файлов с заданной долей дубликатов
+ */
+class TestData {
+    private static final String ASCII = "abcdefghijklmnopqrstuvwxyz0123456789 ";
+    private static final String CYRILLIC = "абвгдеёжзийклмнопрстуфхцчшщъыьэюя ";
+    
+    /**
+     * Записывает lineCount строк длиной lineLength символов.
+     * С вероятностью duplicateRatio строка повторяет одну из уже записанных,
+     * иначе генерируется новая случайная строка. Генератор детерминирован.
+     */
+    static void write(Path file, int lineCount, int lineLength, double duplicateRatio,
+                      String alphabet) throws IOException {
+        String letters = alphabet.equals("CYRILLIC") ? CYRILLIC : ASCII;
+        Random random = new Random(42);
+        List<String> written = new ArrayList<>();
+        char[] buffer = new char[lineLength];
+        
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lineCount; i++) {
+                String line;
+                if (!written.isEmpty() && random.nextDouble() < duplicateRatio) {
+                    line = written.get(random.nextInt(written.size()));
+                } else {
+                    for (int c = 0; c < lineLength; c++) {
+                        buffer[c] = letters.charAt(random.nextInt(letters.length()));
+                    }
+                    line = new String(buffer);
+                    written.add(line);
+                }
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -1,19 +1,45 @@
 import javax.swing.*;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
-import java.util.Stack;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 public class XMLParser extends JFrame implements ActionListener {
     
+    // Сколько строк дерева разворачивается сразу после открытия файла
+    private static final int INITIAL_EXPANDED_ROWS = 500;
+    
+    // Сколько дочерних узлов перечисляется в области содержимого
+    private static final int MAX_LISTED_CHILDREN = 1000;
+    
+    // Через сколько разобранных элементов фоновая загрузка добавляет их в дерево
+    private static final int PUBLISH_BATCH = 5000;
+    
     // Компоненты интерфейса
     private JTree xmlTree;
-    private DefaultTreeModel treeModel;
+    private TreeModel treeModel;
     private JScrollPane treeScrollPane;
     private JTextArea contentArea;
     private JScrollPane contentScrollPane;
@@ -21,6 +47,12 @@ public class XMLParser extends JFrame implements ActionListener {
     private JMenu fileMenu;
     private JMenuItem openItem, exitItem;
     private JFileChooser fileChooser;
+    private JLabel statusBar;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    
+    // Текущая фоновая загрузка или null
+    private XmlLoader loader;
     
     public XMLParser() {
         initializeUI();
@@ -43,6 +75,9 @@ public class XMLParser extends JFrame implements ActionListener {
         xmlTree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
         xmlTree.setShowsRootHandles(true);
         xmlTree.setExpandsSelectedPaths(true);
+        // Фиксированная высота строк: JTree не хранит состояние для каждой видимой строки
+        xmlTree.setRowHeight(20);
+        xmlTree.setLargeModel(true);
         
         // Добавляем слушатель для отображения содержимого
         xmlTree.addTreeSelectionListener(e -> displayNodeContent());
@@ -94,10 +129,24 @@ public class XMLParser extends JFrame implements ActionListener {
         
         add(splitPane, BorderLayout.CENTER);
         
-        // Добавляем статус бар
-        JLabel statusBar = new JLabel(" Ready to open XML file ");
-        statusBar.setBorder(BorderFactory.createEtchedBorder());
-        add(statusBar, BorderLayout.SOUTH);
+        // Добавляем статус бар с индикатором загрузки
+        statusBar = new JLabel(" Ready to open XML file ");
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(this);
+        
+        JPanel loadingPanel = new JPanel(new BorderLayout(5, 0));
+        loadingPanel.add(progressBar, BorderLayout.CENTER);
+        loadingPanel.add(cancelButton, BorderLayout.EAST);
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+        
+        JPanel statusPanel = new JPanel(new BorderLayout());
+        statusPanel.setBorder(BorderFactory.createEtchedBorder());
+        statusPanel.add(statusBar, BorderLayout.CENTER);
+        statusPanel.add(loadingPanel, BorderLayout.EAST);
+        add(statusPanel, BorderLayout.SOUTH);
     }
     
     @Override
@@ -106,6 +155,8 @@ public class XMLParser extends JFrame implements ActionListener {
             openXMLFile();
         } else if (e.getSource() == exitItem) {
             System.exit(0);
+        } else if (e.getSource() == cancelButton && loader != null) {
+            loader.cancel(false);
         }
     }
     
@@ -117,136 +168,178 @@ public class XMLParser extends JFrame implements ActionListener {
         }
     }
     
+    /**
+     * Запускает чтение и разбор файла в фоне. Предыдущая загрузка, если она еще идет,
+     * отменяется; уже показанные узлы заменяются новым деревом по первой порции.
+     */
     private void parseXMLFile(File file) {
-        try {
-            String xmlContent = readFile(file);
-            DefaultMutableTreeNode rootNode = parseXML(xmlContent);
-            
-            // Обновляем модель дерева
-            treeModel.setRoot(rootNode);
-            
-            // Разворачиваем все узлы
-            expandAllNodes(xmlTree, 0, xmlTree.getRowCount());
-            
-            setTitle("XML Parser - " + file.getName());
-            
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, 
-                "Error reading file: " + e.getMessage(), 
-                "Error", JOptionPane.ERROR_MESSAGE);
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, 
-                "Error parsing XML: " + e.getMessage(), 
-                "Error", JOptionPane.ERROR_MESSAGE);
+        if (loader != null) {
+            loader.cancel(false);
         }
+        loader = new XmlLoader(file);
+        loader.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                progressBar.setValue((Integer) e.getNewValue());
+            }
+        });
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        cancelButton.setVisible(true);
+        statusBar.setText(" Loading " + file.getName() + "... ");
+        loader.execute();
     }
     
-    private String readFile(File file) throws IOException {
-        StringBuilder content = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                content.append(line).append("\n");
+    /**
+     * Отображает файл в память только для чтения. Содержимое не копируется в кучу:
+     * токенизатор читает байты прямо из отображения, а декодируются только
+     * отображаемые имена, текст и атрибуты.
+     */
+    private ByteBuffer readFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // Индекс хранит смещения в int
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is larger than 2 GB: " + file.getName());
             }
+            // Отображение остается действительным после закрытия канала
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
         }
-        return content.toString();
     }
     
-    private DefaultMutableTreeNode parseXML(String xmlContent) {
-        // Удаляем комментарии и лишние пробелы
-        xmlContent = xmlContent.replaceAll("<!--.*?-->", "").trim();
+    /**
+     * Фоновая загрузка: файл читается и индексируется вне потока событий,
+     * каждые PUBLISH_BATCH элементов номер последнего готового элемента
+     * публикуется, и дерево дополняется на потоке событий.
+     * Прогресс - доля разобранных байт; отмена прерывает разбор при следующей порции.
+     */
+    private class XmlLoader extends SwingWorker<XmlStructureIndex, Integer> implements XmlParseListener {
+        private final File file;
+        private final long startTime = System.nanoTime();
+        private volatile XmlStructureIndex index;
+        private volatile long size;
+        // Модель этой загрузки, используется только на потоке событий
+        private LazyXmlTreeModel model;
         
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode("XML Document");
-        Stack<DefaultMutableTreeNode> nodeStack = new Stack<>();
-        nodeStack.push(root);
+        XmlLoader(File file) {
+            this.file = file;
+        }
         
-        int index = 0;
-        while (index < xmlContent.length()) {
-            // Ищем открывающий тег
-            int openTagStart = xmlContent.indexOf('<', index);
-            if (openTagStart == -1) break;
-            
-            int openTagEnd = xmlContent.indexOf('>', openTagStart);
-            if (openTagEnd == -1) break;
-            
-            String tagContent = xmlContent.substring(openTagStart + 1, openTagEnd).trim();
-            
-            // Пропускаем XML declaration и processing instructions
-            if (tagContent.startsWith("?") || tagContent.startsWith("!")) {
-                index = openTagEnd + 1;
-                continue;
+        @Override
+        protected XmlStructureIndex doInBackground() throws IOException {
+            ByteBuffer xmlContent = readFile(file);
+            size = Math.max(1, xmlContent.limit());
+            index = new XmlStructureIndex(new XmlTokenizer(xmlContent));
+            index.parse(this, PUBLISH_BATCH);
+            return index;
+        }
+        
+        @Override
+        public void elementsParsed(int count, int position) {
+            if (isCancelled()) {
+                throw new CancellationException();
             }
-            
-            // Проверяем, является ли тег закрывающим
-            if (tagContent.startsWith("/")) {
-                // Закрывающий тег
-                nodeStack.pop();
-            } else {
-                // Открывающий тег
-                String tagName = extractTagName(tagContent);
-                DefaultMutableTreeNode node = new DefaultMutableTreeNode(tagName);
-                nodeStack.peek().add(node);
-                
-                // Проверяем, самозакрывающийся ли тег
-                if (tagContent.endsWith("/")) {
-                    // Самозакрывающийся тег - не добавляем в стек
+            setProgress((int) (position * 100L / size));
+            publish(count);
+        }
+        
+        @Override
+        protected void process(List<Integer> counts) {
+            if (loader != this || isCancelled()) {
+                return;
+            }
+            int count = counts.get(counts.size() - 1);
+            show(count);
+            statusBar.setText(" Loading " + file.getName() + ": " + count + " elements ");
+        }
+        
+        @Override
+        protected void done() {
+            if (loader != this) {
+                // Загрузку заменила следующая
+                return;
+            }
+            loader = null;
+            progressBar.setVisible(false);
+            cancelButton.setVisible(false);
+            try {
+                XmlStructureIndex result = get();
+                show(result.size());
+                setTitle("XML Parser - " + file.getName());
+                statusBar.setText(" Loaded " + file.getName() + ": " + result.size() + " elements in "
+                    + (System.nanoTime() - startTime) / 1_000_000 + " ms ");
+            } catch (CancellationException e) {
+                statusBar.setText(" Loading cancelled: " + (model != null ? model.getElementCount() : 0) + " elements shown ");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                statusBar.setText(" Failed to load " + file.getName() + " ");
+                if (e.getCause() instanceof IOException) {
+                    JOptionPane.showMessageDialog(XMLParser.this, 
+                        "Error reading file: " + e.getCause().getMessage(), 
+                        "Error", JOptionPane.ERROR_MESSAGE);
                 } else {
-                    nodeStack.push(node);
-                }
-                
-                // Ищем текстовое содержимое между тегами
-                int contentStart = openTagEnd + 1;
-                int nextTagStart = xmlContent.indexOf('<', contentStart);
-                
-                if (nextTagStart > contentStart) {
-                    String textContent = xmlContent.substring(contentStart, nextTagStart).trim();
-                    if (!textContent.isEmpty()) {
-                        DefaultMutableTreeNode textNode = new DefaultMutableTreeNode("[TEXT]: " + truncateText(textContent));
-                        node.add(textNode);
-                    }
+                    JOptionPane.showMessageDialog(XMLParser.this, 
+                        "Error parsing XML: " + e.getCause().getMessage(), 
+                        "Error", JOptionPane.ERROR_MESSAGE);
                 }
             }
-            
-            index = openTagEnd + 1;
         }
         
-        return root;
-    }
-    
-    private String extractTagName(String tagContent) {
-        // Извлекаем имя тега (без атрибутов и закрывающего слэша)
-        int spaceIndex = tagContent.indexOf(' ');
-        int slashIndex = tagContent.indexOf('/');
-        
-        int endIndex = tagContent.length();
-        if (spaceIndex != -1) endIndex = Math.min(endIndex, spaceIndex);
-        if (slashIndex != -1) endIndex = Math.min(endIndex, slashIndex);
-        
-        return tagContent.substring(0, endIndex);
-    }
-    
-    private String truncateText(String text) {
-        if (text.length() > 50) {
-            return text.substring(0, 47) + "...";
+        /**
+         * Показывает первые count элементов: первая порция создает модель дерева,
+         * следующие добавляют узлы в уже показанную
+         */
+        private void show(int count) {
+            if (model == null) {
+                // Обновляем модель дерева: узлы создаются только при разворачивании
+                model = new LazyXmlTreeModel(index, count);
+                treeModel = model;
+                xmlTree.setModel(model);
+                
+                // Разворачиваем первые узлы, не больше INITIAL_EXPANDED_ROWS строк
+                expandInitialRows(xmlTree, INITIAL_EXPANDED_ROWS);
+            } else {
+                model.elementsAdded(count);
+            }
         }
-        return text;
     }
     
     private void displayNodeContent() {
-        DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) xmlTree.getLastSelectedPathComponent();
+        TreePath selectedPath = xmlTree.getSelectionPath();
         
-        if (selectedNode == null) return;
+        if (selectedPath == null) return;
         
+        Object selectedNode = selectedPath.getLastPathComponent();
         StringBuilder content = new StringBuilder();
-        content.append("Selected Node: ").append(selectedNode.getUserObject()).append("\n\n");
-        content.append("Path: ").append(getNodePath(selectedNode)).append("\n\n");
+        content.append("Selected Node: ").append(selectedNode).append("\n\n");
+        content.append("Path: ").append(getNodePath(selectedPath)).append("\n\n");
+        
+        // Атрибуты и текст читаются из исходного файла только для выбранного узла
+        if (treeModel instanceof LazyXmlTreeModel) {
+            LazyXmlTreeModel model = (LazyXmlTreeModel) treeModel;
+            Map<String, String> attributes = model.getAttributes(selectedNode);
+            if (!attributes.isEmpty()) {
+                content.append("Attributes:\n");
+                for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                    content.append("  ").append(attribute.getKey()).append(" = ").append(attribute.getValue()).append("\n");
+                }
+                content.append("\n");
+            }
+            String text = model.getText(selectedNode);
+            if (text != null) {
+                content.append("Text:\n").append(text).append("\n\n");
+            }
+        }
         
         // Показываем детей узла
-        if (selectedNode.getChildCount() > 0) {
+        int childCount = treeModel.getChildCount(selectedNode);
+        if (childCount > 0) {
             content.append("Child Nodes:\n");
-            for (int i = 0; i < selectedNode.getChildCount(); i++) {
-                DefaultMutableTreeNode child = (DefaultMutableTreeNode) selectedNode.getChildAt(i);
-                content.append("  • ").append(child.getUserObject()).append("\n");
+            for (int i = 0; i < Math.min(childCount, MAX_LISTED_CHILDREN); i++) {
+                content.append("  • ").append(treeModel.getChild(selectedNode, i)).append("\n");
+            }
+            if (childCount > MAX_LISTED_CHILDREN) {
+                content.append("  ... and ").append(childCount - MAX_LISTED_CHILDREN).append(" more\n");
             }
         } else {
             content.append("No child nodes\n");
@@ -255,8 +348,8 @@ public class XMLParser extends JFrame implements ActionListener {
         contentArea.setText(content.toString());
     }
     
-    private String getNodePath(DefaultMutableTreeNode node) {
-        Object[] path = node.getUserObjectPath();
+    private String getNodePath(TreePath treePath) {
+        Object[] path = treePath.getPath();
         StringBuilder pathBuilder = new StringBuilder();
         
         for (int i = 0; i < path.length; i++) {
@@ -267,14 +360,13 @@ public class XMLParser extends JFrame implements ActionListener {
         return pathBuilder.toString();
     }
     
-    private void expandAllNodes(JTree tree, int startingIndex, int rowCount) {
-        for (int i = startingIndex; i < rowCount; ++i) {
+    /**
+     * Разворачивает строки сверху вниз, пока в дереве не наберется maxRows строк
+     */
+    private void expandInitialRows(JTree tree, int maxRows) {
+        for (int i = 0; i < tree.getRowCount() && tree.getRowCount() < maxRows; i++) {
             tree.expandRow(i);
         }
-        
-        if (tree.getRowCount() != rowCount) {
-            expandAllNodes(tree, rowCount, tree.getRowCount());
-        }
     }
     
     public static void main(String[] args) {
@@ -289,3 +381,1050 @@ public class XMLParser extends JFrame implements ActionListener {
         });
     }
 }
+
+/**
+ * Обработчик событий XmlTokenizer.
+ * Все позиции - смещения в байтах исходного буфера, конец не включается.
+ * Строки не создаются: обработчик сам декодирует то, что ему нужно,
+ * через XmlTokenizer.decode и XmlTokenizer.decodeText.
+ */
+interface XmlHandler {
+    
+    /**
+     * Открывающий тег. За ним следуют события attribute для его атрибутов;
+     * у самозакрывающегося тега сразу после атрибутов приходит endElement.
+     */
+    default void startElement(int nameStart, int nameEnd) {
+    }
+    
+    /**
+     * @param entities значение содержит ссылки на сущности (&amp; и т.п.)
+     */
+    default void attribute(int nameStart, int nameEnd, int valueStart, int valueEnd, boolean entities) {
+    }
+    
+    /**
+     * @param markupEnd позиция после закрывающего тега (или "/>" самозакрывающегося)
+     */
+    default void endElement(int nameStart, int nameEnd, int markupEnd) {
+    }
+    
+    /**
+     * Текст между разметкой, включая пробельные участки
+     * @param entities текст содержит ссылки на сущности
+     */
+    default void text(int start, int end, boolean entities) {
+    }
+    
+    default void cdata(int start, int end) {
+    }
+    
+    default void comment(int start, int end) {
+    }
+    
+    default void processingInstruction(int targetStart, int targetEnd, int dataStart, int dataEnd) {
+    }
+    
+    /**
+     * Объявление вида <!DOCTYPE ...>, содержимое без "<!" и ">"
+     */
+    default void declaration(int start, int end) {
+    }
+}
+
+/**
+ * Однопроходный токенизатор XML над байтами UTF-8.
+ * 
+ * Документ читается один раз слева направо: текст копится до '<', после чего
+ * по следующему байту выбирается вид разметки (тег, закрывающий тег, комментарий,
+ * CDATA, инструкция обработки, объявление). Обработчику передаются только
+ * смещения, поэтому на теги и текст не создаются промежуточные строки.
+ * Сущности в тексте и атрибутах не раскрываются при разборе - только отмечаются,
+ * раскрывает их decodeText по запросу.
+ * Состояние разбора хранится только в локальных переменных, поэтому один
+ * токенизатор можно использовать из потока событий, пока другой поток разбирает документ.
+ */
+class XmlTokenizer {
+    private final ByteBuffer buffer;
+    private final int limit;
+    
+    XmlTokenizer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+    }
+    
+    ByteBuffer buffer() {
+        return buffer;
+    }
+    
+    int limit() {
+        return limit;
+    }
+    
+    /**
+     * Разбирает документ целиком, вызывая обработчик для каждого события
+     * @throws IllegalStateException если разметка не завершена или некорректна
+     */
+    void parse(XmlHandler handler) {
+        int position = buffer.position();
+        // Метка порядка байтов UTF-8
+        if (limit - position >= 3 && buffer.get(position) == (byte) 0xEF
+                && buffer.get(position + 1) == (byte) 0xBB && buffer.get(position + 2) == (byte) 0xBF) {
+            position += 3;
+        }
+        
+        int textStart = position;
+        boolean entities = false;
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b != '<') {
+                if (b == '&') {
+                    entities = true;
+                }
+                position++;
+                continue;
+            }
+            if (position > textStart) {
+                handler.text(textStart, position, entities);
+            }
+            position = markup(position, handler);
+            textStart = position;
+            entities = false;
+        }
+        if (position > textStart) {
+            handler.text(textStart, position, entities);
+        }
+    }
+    
+    /**
+     * Разбирает разметку, начинающуюся с '<' в позиции start
+     * @return позиция после разметки
+     */
+    private int markup(int start, XmlHandler handler) {
+        if (start + 1 >= limit) {
+            throw error("Unexpected end of document", start);
+        }
+        byte next = buffer.get(start + 1);
+        if (next == '/') {
+            int nameEnd = nameEnd(start + 2);
+            int end = skipWhitespace(nameEnd);
+            if (end >= limit || buffer.get(end) != '>') {
+                throw error("Unterminated end tag", start);
+            }
+            handler.endElement(start + 2, nameEnd, end + 1);
+            return end + 1;
+        }
+        if (next == '?') {
+            int targetEnd = nameEnd(start + 2);
+            int end = find(targetEnd, '?', '>');
+            if (end < 0) {
+                throw error("Unterminated processing instruction", start);
+            }
+            handler.processingInstruction(start + 2, targetEnd, Math.min(skipWhitespace(targetEnd), end), end);
+            return end + 2;
+        }
+        if (next == '!') {
+            if (startsWith(start + 2, "--")) {
+                int end = find(start + 4, '-', '-', '>');
+                if (end < 0) {
+                    throw error("Unterminated comment", start);
+                }
+                handler.comment(start + 4, end);
+                return end + 3;
+            }
+            if (startsWith(start + 2, "[CDATA[")) {
+                int end = find(start + 9, ']', ']', '>');
+                if (end < 0) {
+                    throw error("Unterminated CDATA section", start);
+                }
+                handler.cdata(start + 9, end);
+                return end + 3;
+            }
+            int end = declarationEnd(start + 2);
+            handler.declaration(start + 2, end);
+            return end + 1;
+        }
+        return startTag(start, handler);
+    }
+    
+    /**
+     * Разбирает открывающий тег, начинающийся с '<' в позиции start.
+     * Вызывается и повторно для одного тега, чтобы прочитать его атрибуты.
+     * @return позиция после тега
+     */
+    int startTag(int start, XmlHandler handler) {
+        int nameStart = start + 1;
+        int nameEnd = nameEnd(nameStart);
+        if (nameEnd == nameStart) {
+            throw error("Missing element name", start);
+        }
+        handler.startElement(nameStart, nameEnd);
+        
+        int position = nameEnd;
+        while (true) {
+            position = skipWhitespace(position);
+            if (position >= limit) {
+                throw error("Unterminated start tag", start);
+            }
+            byte b = buffer.get(position);
+            if (b == '>') {
+                return position + 1;
+            }
+            if (b == '/') {
+                if (position + 1 >= limit || buffer.get(position + 1) != '>') {
+                    throw error("Expected '>' after '/'", position);
+                }
+                handler.endElement(nameStart, nameEnd, position + 2);
+                return position + 2;
+            }
+            
+            // Атрибут: имя = "значение"
+            int attributeStart = position;
+            int attributeEnd = nameEnd(attributeStart);
+            if (attributeEnd == attributeStart) {
+                throw error("Unexpected character in start tag", position);
+            }
+            position = skipWhitespace(attributeEnd);
+            if (position >= limit || buffer.get(position) != '=') {
+                throw error("Expected '=' after attribute name", position);
+            }
+            position = skipWhitespace(position + 1);
+            if (position >= limit || (buffer.get(position) != '"' && buffer.get(position) != '\'')) {
+                throw error("Expected quoted attribute value", position);
+            }
+            byte quote = buffer.get(position);
+            int valueStart = position + 1;
+            boolean entities = false;
+            position = valueStart;
+            while (position < limit && buffer.get(position) != quote) {
+                if (buffer.get(position) == '&') {
+                    entities = true;
+                }
+                position++;
+            }
+            if (position >= limit) {
+                throw error("Unterminated attribute value", valueStart - 1);
+            }
+            handler.attribute(attributeStart, attributeEnd, valueStart, position, entities);
+            position++;
+        }
+    }
+    
+    /**
+     * Конец объявления <!...> с учетом внутреннего подмножества DOCTYPE в [...] и кавычек
+     */
+    private int declarationEnd(int from) {
+        int depth = 0;
+        byte quote = 0;
+        for (int position = from; position < limit; position++) {
+            byte b = buffer.get(position);
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '[') {
+                depth++;
+            } else if (b == ']') {
+                depth--;
+            } else if (b == '>' && depth <= 0) {
+                return position;
+            }
+        }
+        throw error("Unterminated declaration", from - 2);
+    }
+    
+    /**
+     * Конец имени: имя продолжается до пробела или одного из символов / > = ?
+     */
+    int nameEnd(int from) {
+        int position = from;
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (isWhitespace(b) || b == '>' || b == '/' || b == '=' || b == '?') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+    
+    int skipWhitespace(int from) {
+        int position = from;
+        while (position < limit && isWhitespace(buffer.get(position))) {
+            position++;
+        }
+        return position;
+    }
+    
+    boolean startsWith(int from, String prefix) {
+        if (limit - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private int find(int from, char first, char second) {
+        for (int position = from; position + 1 < limit; position++) {
+            if (buffer.get(position) == first && buffer.get(position + 1) == second) {
+                return position;
+            }
+        }
+        return -1;
+    }
+    
+    int find(int from, char first, char second, char third) {
+        return find(from, limit, first, second, third);
+    }
+    
+    /**
+     * Ищет три байта подряд, целиком лежащие в [from, to)
+     */
+    int find(int from, int to, char first, char second, char third) {
+        for (int position = from; position + 2 < to; position++) {
+            if (buffer.get(position) == first && buffer.get(position + 1) == second
+                    && buffer.get(position + 2) == third) {
+                return position;
+            }
+        }
+        return -1;
+    }
+    
+    private IllegalStateException error(String message, int offset) {
+        return new IllegalStateException(message + " at byte " + offset);
+    }
+    
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+    
+    int trimStart(int start, int end) {
+        while (start < end && isWhitespace(buffer.get(start))) {
+            start++;
+        }
+        return start;
+    }
+    
+    int trimEnd(int start, int end) {
+        while (end > start && isWhitespace(buffer.get(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+    
+    /**
+     * Сдвигает end назад, если он попадает внутрь многобайтового символа UTF-8,
+     * чтобы обрезанный по длине текст не заканчивался половиной символа
+     */
+    int charBoundary(int start, int end) {
+        while (end > start && end < limit && (buffer.get(end) & 0xC0) == 0x80) {
+            end--;
+        }
+        return end;
+    }
+    
+    /**
+     * Декодирует байты [start, end) как UTF-8 без обработки сущностей
+     */
+    String decode(int start, int end) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Декодирует текст или значение атрибута, раскрывая стандартные
+     * и числовые сущности. Неизвестные сущности остаются как есть.
+     */
+    String decodeText(int start, int end) {
+        StringBuilder text = new StringBuilder(end - start);
+        int runStart = start;
+        int position = start;
+        while (position < end) {
+            if (buffer.get(position) != '&') {
+                position++;
+                continue;
+            }
+            int semicolon = position + 1;
+            while (semicolon < end && semicolon - position <= 10 && buffer.get(semicolon) != ';') {
+                semicolon++;
+            }
+            if (semicolon >= end || buffer.get(semicolon) != ';') {
+                position++;
+                continue;
+            }
+            int codePoint = entity(position + 1, semicolon);
+            if (codePoint < 0) {
+                position = semicolon + 1;
+                continue;
+            }
+            text.append(decode(runStart, position)).appendCodePoint(codePoint);
+            position = semicolon + 1;
+            runStart = position;
+        }
+        return text.append(decode(runStart, end)).toString();
+    }
+    
+    /**
+     * Код символа для сущности между '&' и ';' или -1, если сущность неизвестна
+     */
+    private int entity(int start, int end) {
+        if (end - start >= 2 && buffer.get(start) == '#') {
+            boolean hex = buffer.get(start + 1) == 'x';
+            int radix = hex ? 16 : 10;
+            int value = 0;
+            int from = hex ? start + 2 : start + 1;
+            if (from >= end) {
+                return -1;
+            }
+            for (int position = from; position < end; position++) {
+                int digit = Character.digit(buffer.get(position), radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                value = value * radix + digit;
+            }
+            return Character.isValidCodePoint(value) ? value : -1;
+        }
+        if (startsWith(start, "lt;") && end - start == 2) {
+            return '<';
+        }
+        if (startsWith(start, "gt;") && end - start == 2) {
+            return '>';
+        }
+        if (startsWith(start, "amp;") && end - start == 3) {
+            return '&';
+        }
+        if (startsWith(start, "quot;") && end - start == 4) {
+            return '"';
+        }
+        if (startsWith(start, "apos;") && end - start == 4) {
+            return '\'';
+        }
+        return -1;
+    }
+}
+
+/**
+ * Получает ход разбора из XmlStructureIndex.parse
+ */
+interface XmlParseListener {
+    
+    /**
+     * @param count сколько элементов уже заполнено
+     * @param position смещение в байтах, до которого дошел разбор
+     */
+    void elementsParsed(int count, int position);
+}
+
+/**
+ * Компактное структурное представление документа поверх исходных байт.
+ * 
+ * Элементы нумеруются в порядке документа, для каждого в параллельных массивах
+ * хранятся смещение '<' открывающего тега, смещение после закрывающего тега,
+ * родитель, первый дочерний элемент, следующий соседний элемент (-1, если нет)
+ * и номер имени в XmlNameTable - 24 байта на элемент.
+ * Текст и атрибуты не хранятся: они читаются из буфера при запросе.
+ */
+class XmlStructureIndex {
+    static final int NONE = -1;
+    
+    private final XmlTokenizer tokenizer;
+    private final XmlNameTable names = new XmlNameTable();
+    private int count;
+    private int firstRoot = NONE;
+    // Ссылки volatile: при росте поток событий, читающий уже опубликованные
+    // элементы во время разбора, видит либо старый массив, либо полную копию
+    private volatile int[] starts = new int[1024];
+    private volatile int[] ends = new int[1024];
+    private volatile int[] parents = new int[1024];
+    private volatile int[] firstChildren = new int[1024];
+    private volatile int[] nextSiblings = new int[1024];
+    private volatile int[] nameIds = new int[1024];
+    
+    XmlStructureIndex(XmlTokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+    
+    static XmlStructureIndex build(XmlTokenizer tokenizer) {
+        XmlStructureIndex index = new XmlStructureIndex(tokenizer);
+        index.parse(null, 0);
+        return index;
+    }
+    
+    /**
+     * Разбирает документ. Если задан listener, он вызывается каждые batchSize
+     * элементов в потоке разбора; к этому моменту все элементы с меньшими номерами
+     * заполнены, у них могут меняться только ссылки на еще не опубликованные элементы
+     * (nextSibling, firstChild) и конец. Исключение из listener прерывает разбор.
+     */
+    void parse(XmlParseListener listener, int batchSize) {
+        Builder builder = new Builder(listener, batchSize);
+        tokenizer.parse(builder);
+        builder.finish();
+        // Запас после роста массивов больше не нужен
+        resize(count);
+    }
+    
+    int size() {
+        return count;
+    }
+    
+    /**
+     * Первый элемент верхнего уровня; остальные доступны через nextSibling
+     */
+    int firstRoot() {
+        return firstRoot;
+    }
+    
+    int start(int element) {
+        return starts[element];
+    }
+    
+    int end(int element) {
+        return ends[element];
+    }
+    
+    int parent(int element) {
+        return parents[element];
+    }
+    
+    int firstChild(int element) {
+        return firstChildren[element];
+    }
+    
+    int nextSibling(int element) {
+        return nextSiblings[element];
+    }
+    
+    int nameId(int element) {
+        return nameIds[element];
+    }
+    
+    String name(int element) {
+        return names.name(nameIds[element]);
+    }
+    
+    XmlNameTable names() {
+        return names;
+    }
+    
+    /**
+     * Атрибуты элемента в порядке записи; открывающий тег разбирается заново
+     */
+    Map<String, String> attributes(int element) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        tokenizer.startTag(starts[element], new XmlHandler() {
+            @Override
+            public void attribute(int nameStart, int nameEnd, int valueStart, int valueEnd, boolean entities) {
+                attributes.put(tokenizer.decode(nameStart, nameEnd),
+                    entities ? tokenizer.decodeText(valueStart, valueEnd) : tokenizer.decode(valueStart, valueEnd));
+            }
+        });
+        return attributes;
+    }
+    
+    /**
+     * Текст, идущий сразу после открывающего тега (комментарии и пустые CDATA
+     * пропускаются), не длиннее maxBytes байт исходного буфера, или null, если текста нет.
+     * Поиск не выходит за конец элемента; у еще не закрытого элемента - за конец документа.
+     */
+    String text(int element, int maxBytes) {
+        int position = tokenizer.startTag(starts[element], new XmlHandler() { });
+        if (tokenizer.buffer().get(position - 2) == '/') {
+            // Самозакрывающийся тег
+            return null;
+        }
+        int elementEnd = ends[element] == NONE ? tokenizer.limit() : ends[element];
+        while (true) {
+            position = tokenizer.skipWhitespace(position);
+            if (position >= elementEnd) {
+                return null;
+            }
+            if (tokenizer.startsWith(position, "<!--")) {
+                int commentEnd = tokenizer.find(position + 4, elementEnd, '-', '-', '>');
+                if (commentEnd < 0) {
+                    // Незакрытый комментарий до конца документа - текста нет
+                    return null;
+                }
+                position = commentEnd + 3;
+                continue;
+            }
+            if (tokenizer.startsWith(position, "<![CDATA[")) {
+                int cdataEnd = tokenizer.find(position + 9, elementEnd, ']', ']', '>');
+                if (cdataEnd < 0) {
+                    cdataEnd = elementEnd;
+                }
+                int start = tokenizer.trimStart(position + 9, cdataEnd);
+                int end = tokenizer.trimEnd(start, cdataEnd);
+                if (start == end) {
+                    position = cdataEnd + 3;
+                    continue;
+                }
+                return tokenizer.decode(start, tokenizer.charBoundary(start, Math.min(end, start + maxBytes)));
+            }
+            if (tokenizer.buffer().get(position) == '<') {
+                return null;
+            }
+            int end = position;
+            int limit = Math.min(elementEnd, position + maxBytes);
+            while (end < limit && tokenizer.buffer().get(end) != '<') {
+                end++;
+            }
+            end = tokenizer.charBoundary(position, end);
+            return tokenizer.decodeText(position, tokenizer.trimEnd(position, end));
+        }
+    }
+    
+    private void grow() {
+        resize(starts.length + (starts.length >> 1));
+    }
+    
+    private void resize(int capacity) {
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+    }
+    
+    /**
+     * Заполняет массивы по событиям токенизатора.
+     * Для каждого уровня открытых элементов помнит последний дочерний элемент,
+     * чтобы связать его с очередным соседом.
+     */
+    private class Builder implements XmlHandler {
+        private final XmlParseListener listener;
+        private final int batchSize;
+        // open[0] - документ, open[i] - открытый элемент глубины i
+        private int[] open = new int[64];
+        private int[] lastChild = new int[64];
+        private int depth;
+        
+        Builder(XmlParseListener listener, int batchSize) {
+            this.listener = listener;
+            this.batchSize = batchSize;
+            open[0] = NONE;
+            lastChild[0] = NONE;
+        }
+        
+        @Override
+        public void startElement(int nameStart, int nameEnd) {
+            if (count == starts.length) {
+                grow();
+            }
+            int element = count++;
+            int parent = open[depth];
+            starts[element] = nameStart - 1;
+            ends[element] = NONE;
+            parents[element] = parent;
+            firstChildren[element] = NONE;
+            nextSiblings[element] = NONE;
+            nameIds[element] = names.id(tokenizer.buffer(), nameStart, nameEnd);
+            
+            int previous = lastChild[depth];
+            if (previous != NONE) {
+                nextSiblings[previous] = element;
+            } else if (parent != NONE) {
+                firstChildren[parent] = element;
+            } else {
+                firstRoot = element;
+            }
+            lastChild[depth] = element;
+            
+            if (++depth == open.length) {
+                open = Arrays.copyOf(open, depth * 2);
+                lastChild = Arrays.copyOf(lastChild, depth * 2);
+            }
+            open[depth] = element;
+            lastChild[depth] = NONE;
+            
+            if (listener != null && count % batchSize == 0) {
+                listener.elementsParsed(count, nameStart);
+            }
+        }
+        
+        @Override
+        public void endElement(int nameStart, int nameEnd, int markupEnd) {
+            // Лишний закрывающий тег пропускается
+            if (depth > 0) {
+                ends[open[depth--]] = markupEnd;
+            }
+        }
+        
+        /**
+         * Незакрытые к концу документа элементы заканчиваются в конце буфера
+         */
+        void finish() {
+            while (depth > 0) {
+                ends[open[depth--]] = tokenizer.limit();
+            }
+        }
+    }
+}
+
+/**
+ * Таблица имен тегов: одинаковые имена получают один номер,
+ * строка для имени декодируется один раз.
+ * Открытая адресация по хешу байт имени.
+ */
+class XmlNameTable {
+    private final List<byte[]> bytes = new ArrayList<>();
+    // volatile по той же причине, что и массивы XmlStructureIndex
+    private volatile String[] names = new String[64];
+    // Номер имени + 1, 0 - пустая ячейка
+    private int[] slots = new int[256];
+    
+    int id(ByteBuffer buffer, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return add(buffer, start, end, slot);
+            }
+            if (matches(bytes.get(id), buffer, start, end)) {
+                return id;
+            }
+        }
+    }
+    
+    String name(int id) {
+        return names[id];
+    }
+    
+    int size() {
+        return bytes.size();
+    }
+    
+    private int add(ByteBuffer buffer, int start, int end, int slot) {
+        byte[] name = new byte[end - start];
+        buffer.get(start, name);
+        int id = bytes.size();
+        bytes.add(name);
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+        }
+        names[id] = new String(name, StandardCharsets.UTF_8);
+        slots[slot] = id + 1;
+        if (bytes.size() * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+    
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < bytes.size(); id++) {
+            int slot = mix(hashOf(bytes.get(id))) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+    
+    private static int hashOf(byte[] name) {
+        int hash = 0;
+        for (byte b : name) {
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+    
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+    
+    private static boolean matches(byte[] name, ByteBuffer buffer, int start, int end) {
+        if (name.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+/**
+ * Модель дерева поверх XmlStructureIndex.
+ * 
+ * Узлы - легкие объекты с номером элемента, равные по номеру, поэтому их можно
+ * создавать заново при каждом запросе. Список дочерних элементов собирается
+ * по цепочке nextSibling при первом обращении к детям узла (то есть при
+ * разворачивании) и кешируется.
+ */
+class LazyXmlTreeModel implements TreeModel {
+    // Сколько байт текста декодировать для подписи узла
+    private static final int TEXT_PREVIEW_BYTES = 1024;
+    // Сколько байт текста показывать в области содержимого
+    private static final int TEXT_DISPLAY_BYTES = 64 * 1024;
+    private static final int ROOT = XmlStructureIndex.NONE;
+    
+    private final XmlStructureIndex index;
+    private final ElementNode root;
+    // Видны только элементы с номерами меньше limit; растет по мере фонового разбора
+    private int limit;
+    private final Map<Integer, int[]> children = new HashMap<>();
+    // Наличие текста у элементов, для которых оно уже проверялось
+    private final BitSet textChecked = new BitSet();
+    private final BitSet withText = new BitSet();
+    private final EventListenerList listeners = new EventListenerList();
+    
+    LazyXmlTreeModel(XmlStructureIndex index) {
+        this(index, index.size());
+    }
+    
+    LazyXmlTreeModel(XmlStructureIndex index, int limit) {
+        this.index = index;
+        this.root = new ElementNode(ROOT);
+        this.limit = limit;
+    }
+    
+    int getElementCount() {
+        return limit;
+    }
+    
+    /**
+     * Делает видимыми элементы до newLimit и сообщает дереву о новых детях
+     * тех узлов, чьи списки детей уже запрашивались. Остальные узлы получат
+     * актуальный список при первом разворачивании.
+     */
+    void elementsAdded(int newLimit) {
+        int oldLimit = limit;
+        if (newLimit <= oldLimit) {
+            return;
+        }
+        limit = newLimit;
+        
+        Map<Integer, List<Integer>> added = new LinkedHashMap<>();
+        for (int element = oldLimit; element < newLimit; element++) {
+            int parent = index.parent(element);
+            if (children.containsKey(parent)) {
+                added.computeIfAbsent(parent, key -> new ArrayList<>()).add(element);
+            }
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : added.entrySet()) {
+            int parent = entry.getKey();
+            List<Integer> newChildren = entry.getValue();
+            int[] previous = children.get(parent);
+            int[] updated = Arrays.copyOf(previous, previous.length + newChildren.size());
+            int[] indices = new int[newChildren.size()];
+            Object[] nodes = new Object[newChildren.size()];
+            int offset = hasText(parent) ? 1 : 0;
+            for (int i = 0; i < newChildren.size(); i++) {
+                updated[previous.length + i] = newChildren.get(i);
+                indices[i] = offset + previous.length + i;
+                nodes[i] = new ElementNode(newChildren.get(i));
+            }
+            children.put(parent, updated);
+            
+            TreeModelEvent event = new TreeModelEvent(this, pathTo(parent), indices, nodes);
+            for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class)) {
+                listener.treeNodesInserted(event);
+            }
+        }
+    }
+    
+    private TreePath pathTo(int element) {
+        if (element == ROOT) {
+            return new TreePath(root);
+        }
+        return pathTo(index.parent(element)).pathByAddingChild(new ElementNode(element));
+    }
+    
+    @Override
+    public Object getRoot() {
+        return root;
+    }
+    
+    @Override
+    public Object getChild(Object parent, int childIndex) {
+        if (!(parent instanceof ElementNode)) {
+            return null;
+        }
+        int element = ((ElementNode) parent).element;
+        if (hasText(element)) {
+            if (childIndex == 0) {
+                return new TextNode(element);
+            }
+            childIndex--;
+        }
+        return new ElementNode(childElements(element)[childIndex]);
+    }
+    
+    @Override
+    public int getChildCount(Object parent) {
+        if (!(parent instanceof ElementNode)) {
+            return 0;
+        }
+        int element = ((ElementNode) parent).element;
+        return childElements(element).length + (hasText(element) ? 1 : 0);
+    }
+    
+    @Override
+    public boolean isLeaf(Object node) {
+        if (!(node instanceof ElementNode)) {
+            return true;
+        }
+        int element = ((ElementNode) node).element;
+        int first = element == ROOT ? index.firstRoot() : index.firstChild(element);
+        return (first == XmlStructureIndex.NONE || first >= limit) && !hasText(element);
+    }
+    
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (!(parent instanceof ElementNode)) {
+            return -1;
+        }
+        int element = ((ElementNode) parent).element;
+        if (child instanceof TextNode) {
+            return ((TextNode) child).element == element && hasText(element) ? 0 : -1;
+        }
+        if (!(child instanceof ElementNode)) {
+            return -1;
+        }
+        int position = Arrays.binarySearch(childElements(element), ((ElementNode) child).element);
+        if (position < 0) {
+            return -1;
+        }
+        return hasText(element) ? position + 1 : position;
+    }
+    
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // Дерево только для просмотра
+    }
+    
+    @Override
+    public void addTreeModelListener(TreeModelListener listener) {
+        listeners.add(TreeModelListener.class, listener);
+    }
+    
+    @Override
+    public void removeTreeModelListener(TreeModelListener listener) {
+        listeners.remove(TreeModelListener.class, listener);
+    }
+    
+    /**
+     * Атрибуты элемента; для корня и текстовых узлов - пустая карта
+     */
+    Map<String, String> getAttributes(Object node) {
+        if (node instanceof ElementNode && ((ElementNode) node).element != ROOT) {
+            return index.attributes(((ElementNode) node).element);
+        }
+        return new LinkedHashMap<>();
+    }
+    
+    /**
+     * Текст элемента (для текстового узла - текст его элемента) или null
+     */
+    String getText(Object node) {
+        int element = node instanceof TextNode ? ((TextNode) node).element
+            : node instanceof ElementNode ? ((ElementNode) node).element : ROOT;
+        if (element == ROOT || !hasText(element)) {
+            return null;
+        }
+        return index.text(element, TEXT_DISPLAY_BYTES);
+    }
+    
+    private boolean hasText(int element) {
+        if (element == ROOT) {
+            return false;
+        }
+        if (!textChecked.get(element)) {
+            textChecked.set(element);
+            withText.set(element, index.text(element, 1) != null);
+        }
+        return withText.get(element);
+    }
+    
+    /**
+     * Номера дочерних элементов по возрастанию
+     */
+    private int[] childElements(int element) {
+        return children.computeIfAbsent(element, key -> {
+            int first = element == ROOT ? index.firstRoot() : index.firstChild(element);
+            int count = 0;
+            for (int child = first; child != XmlStructureIndex.NONE && child < limit; child = index.nextSibling(child)) {
+                count++;
+            }
+            int[] result = new int[count];
+            int i = 0;
+            for (int child = first; child != XmlStructureIndex.NONE && child < limit; child = index.nextSibling(child)) {
+                result[i++] = child;
+            }
+            return result;
+        });
+    }
+    
+    static String truncateText(String text) {
+        if (text.length() > 50) {
+            return text.substring(0, 47) + "...";
+        }
+        return text;
+    }
+    
+    private final class ElementNode {
+        final int element;
+        
+        ElementNode(int element) {
+            this.element = element;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ElementNode && ((ElementNode) other).element == element;
+        }
+        
+        @Override
+        public int hashCode() {
+            return element;
+        }
+        
+        @Override
+        public String toString() {
+            return element == ROOT ? "XML Document" : index.name(element);
+        }
+    }
+    
+    private final class TextNode {
+        final int element;
+        
+        TextNode(int element) {
+            this.element = element;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof TextNode && ((TextNode) other).element == element;
+        }
+        
+        @Override
+        public int hashCode() {
+            return ~element;
+        }
+        
+        @Override
+        public String toString() {
+            return "[TEXT]: " + truncateText(index.text(element, TEXT_PREVIEW_BYTES));
+        }
+    }
+}